@@ -22,6 +22,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class acts as a simple demo for the dnsjnio extension.
@@ -53,13 +54,14 @@ public class DemoClient {
         resolver.setTCP(true);
         resolver.setSingleTcpPort(true);
         ResponseQueue responseQueue = new ResponseQueue();
-        // Send all the queries asynchronously
+        // Send all the queries asynchronously, as one batch
+        List<Message> queries = new ArrayList<Message>();
         for (int i = 0; i < toResolve.size(); i++) {
             String nextName = (String) (toResolve.get(i));
 //            System.out.println("Querying for " + nextName);
-            Integer id = new Integer(i);
-            resolver.sendAsync(makeQuery(nextName, i), id, responseQueue);
+            queries.add(makeQuery(nextName, i));
         }
+        resolver.sendBatch(queries, responseQueue);
         System.out.println("Sent " + toResolve.size() + " queries");
         // Now receive all the queries
         int goodCount = 0;
@@ -17,14 +17,38 @@ limitations under the License.
 package uk.nominet.dnsjnio;
 
 import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
 
 import org.xbill.DNS.Message;
 import org.xbill.DNS.ResolverListener;
 
 /**
  * Abstract superclass for the Transaction and SinglePortTransaction classes
+ * Each transaction is pinned to one SelectLoop, and all of its Connections use that loop.
  */
 public abstract class AbstractTransaction implements ConnectionListener, TimerListener {
+    protected final SelectLoop loop = DnsController.nextLoop();
+    private volatile Executor callbackExecutor = CallbackExecutors.getDefault();
+
+    /**
+     * @return the select loop which runs this transaction's Connections
+     */
+    public SelectLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Set the Executor which runs the ResolverListener callbacks
+     * @param callbackExecutor see CallbackExecutors
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
     protected boolean disconnect(Connection connection) {
         if (connection != null) {
         	// If disconnect returns false, then the connection has already been closed,
@@ -43,10 +67,9 @@ public abstract class AbstractTransaction implements ConnectionListener, TimerLi
         return 0;
     }
 
-  protected static void sendQuery(Connection connection, Message query) {
+  protected static void sendQuery(Connection connection, byte[] queryWire) {
         if (connection != null) {
-            byte [] out = query.toWire(Message.MAXLENGTH);
-            connection.send(out);
+            connection.send(queryWire);
         }
     }
 
@@ -58,24 +81,49 @@ public abstract class AbstractTransaction implements ConnectionListener, TimerLi
      * When timer completes, end the connection and throw an IOException to the caller.
      */
     public void timedOut(QueryData qData) {
-    	// only return an exception if we actually closed the connection
-        if (disconnect(qData)) {
-            returnException(new SocketTimeoutException("Timed out"), qData);
+        disconnect(qData);
+        // Always return the exception - the connection may never have opened
+        // (e.g. its local port was in use), in which case there's nothing to
+        // close. If the response has already been returned, returnException
+        // does nothing.
+        returnException(new SocketTimeoutException("Timed out"), qData);
+    }
+
+    /**
+     * Tell the completion listener (if there is one) that the query is done,
+     * before its result is returned to the client.
+     * @param e the exception the query failed with, or null if it was answered
+     */
+    protected static void queryCompleted(QueryCompletionListener completionListener, Exception e) {
+        if (completionListener != null) {
+            completionListener.queryCompleted(e);
         }
     }
 
-    protected static void returnResponse(ResolverListener listener, ResponseQueue responseQueue, Message message, Object id) {
+    protected void returnResponse(ResolverListener listener, ResponseQueue responseQueue, Message message, Object id) {
+        returnResponse(listener, responseQueue, message, null, id);
+    }
+
+    /**
+     * Return a response which may not have been decoded yet.
+     * @param message the decoded response, or null to decode it from the wire data on demand
+     * @param wireData the wire format of the response, or null if the client only wants the Message
+     */
+    protected void returnResponse(ResolverListener listener, ResponseQueue responseQueue, Message message, byte[] wireData, Object id) {
         Response response = new Response();
         if (listener == null) {
             response.setId(id);
             response.setMessage(message);
+            response.setWireData(wireData);
             responseQueue.insert(response);
         }
+        else if (listener instanceof InlineListener) {
+            // Inline listeners (such as futures) don't need a thread of their own
+            listener.receiveMessage(id, message);
+        }
         else {
             // Send the result back to the listener
-            // @todo@ Should probably have a pool of these threads.
-            ResponderThread responder = new ResponderThread(listener, id, message);
-            responder.start();
+            callbackExecutor.execute(new ResponderTask(listener, id, message));
         }
     }
 
@@ -88,11 +136,12 @@ public abstract class AbstractTransaction implements ConnectionListener, TimerLi
             response.setException(true);
             responseQueue.insert(response);
         }
+        else if (listener instanceof InlineListener) {
+            listener.handleException(id, e);
+        }
         else {
             // Send the exception back to the listener
-            // @todo@ Should probably have a pool of these threads.
-            ResponderThread responder = new ResponderThread(listener, id, e);
-            responder.start();
+            callbackExecutor.execute(new ResponderTask(listener, id, e));
         }
     }
 
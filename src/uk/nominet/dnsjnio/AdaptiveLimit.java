@@ -0,0 +1,179 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+/**
+ * Adjusts an InFlightLimiter's limit to what the upstream server can
+ * sustain, from the round trip times and timeouts of its queries.
+ * <p>
+ * This is a Vegas-style limit, with AIMD backoff on loss. The lowest round
+ * trip time seen is taken as the time the server takes when nothing is 
+ * queued. The number of queries queued at the server is then estimated 
+ * from each new round trip time (limit * (1 - minRtt / rtt)) : if it is
+ * below alpha, the limit grows by about one query per round trip, and if
+ * it is above beta it shrinks by the same. A timeout is taken as loss,
+ * and cuts the limit by the backoff ratio - at most once per round trip,
+ * so that a burst of timeouts counts once. The limit only grows while the
+ * queries in flight are actually using it.
+ * <p>
+ * The lowest round trip time is measured afresh every PROBE_INTERVAL 
+ * samples, in case the route to the server (or its load) has changed.
+ */
+public class AdaptiveLimit {
+    /** The default limit to start from */
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    /** The default lowest limit */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    /** The default highest limit */
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+    /** The default fraction of the limit kept after a timeout */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    /** The number of samples after which the lowest round trip time is measured again */
+    public static final int PROBE_INTERVAL = 1000;
+
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    private double alpha = 3;
+    private double beta = 6;
+
+    private double limit;
+    private long minRtt = 0;
+    private double smoothedRtt = 0;
+    private long lastBackoff = 0;
+    private int samples = 0;
+    private long timeouts = 0;
+
+    public AdaptiveLimit() {
+        this(DEFAULT_INITIAL_LIMIT);
+    }
+
+    /**
+     * @param initialLimit the limit to start from
+     */
+    public AdaptiveLimit(int initialLimit) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit must be at least 1");
+        }
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Set the range the limit is kept in
+     */
+    public synchronized void setLimitRange(int minLimit, int maxLimit) {
+        if ((minLimit < 1) || (maxLimit < minLimit)) {
+            throw new IllegalArgumentException("Bad limit range " + minLimit + " - " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = clamp(limit);
+    }
+
+    /**
+     * Set the fraction of the limit which is kept after a timeout
+     */
+    public synchronized void setBackoffRatio(double backoffRatio) {
+        if ((backoffRatio <= 0) || (backoffRatio >= 1)) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Set the estimated number of queries queued at the server below which
+     * the limit grows (alpha), and above which it shrinks (beta)
+     */
+    public synchronized void setQueueThresholds(double alpha, double beta) {
+        if ((alpha < 0) || (beta < alpha)) {
+            throw new IllegalArgumentException("Need 0 <= alpha <= beta");
+        }
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    /**
+     * @return the current limit
+     */
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    /**
+     * @return the lowest round trip time (in milliseconds) in the current
+     *         probe interval
+     */
+    public synchronized long getMinRtt() {
+        return minRtt;
+    }
+
+    /**
+     * @return the smoothed round trip time, in milliseconds
+     */
+    public synchronized long getSmoothedRtt() {
+        return (long)smoothedRtt;
+    }
+
+    /**
+     * @return the number of timeouts seen
+     */
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Take account of a completed query.
+     * @param rtt the query's round trip time in milliseconds (ignored if it
+     *            was dropped), or -1 if there is none
+     * @param dropped true if the query timed out
+     * @param inFlight the number of queries in flight when it completed
+     * @return the new limit
+     */
+    synchronized int update(long rtt, boolean dropped, int inFlight) {
+        long now = System.currentTimeMillis();
+        if (dropped) {
+            timeouts++;
+            // Once per round trip
+            if (now - lastBackoff > smoothedRtt) {
+                lastBackoff = now;
+                limit = clamp(limit * backoffRatio);
+            }
+            return (int)limit;
+        }
+        if (rtt < 0) {
+            return (int)limit;
+        }
+        if (rtt < 1) {
+            rtt = 1;
+        }
+        if ((samples++ % PROBE_INTERVAL == 0) || (rtt < minRtt)) {
+            minRtt = rtt;
+        }
+        smoothedRtt = (smoothedRtt == 0) ? rtt : (smoothedRtt * 0.875 + rtt * 0.125);
+        double queued = limit * (1 - (double)minRtt / smoothedRtt);
+        if (queued > beta) {
+            limit = clamp(limit - 1 / limit);
+        } else if ((queued < alpha) && (inFlight * 2 >= limit)) {
+            limit = clamp(limit + 1 / limit);
+        }
+        return (int)limit;
+    }
+
+    private double clamp(double newLimit) {
+        return Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of direct ByteBuffers, owned by a SelectLoop.
+ * A Connection borrows a buffer only while it is reading from its channel,
+ * so idle connections hold no buffer at all. Each buffer is big enough for
+ * the largest DNS message. The pool is only used on the loop's select
+ * thread, so it needs no locking.
+ */
+public class BufferPool {
+    /** Big enough for any UDP datagram, or a TCP message and its length */
+    public static final int BUFFER_SIZE = 65536 + 2;
+    // Buffers beyond this many are left to the garbage collector when released
+    private static final int MAX_POOLED = 16;
+
+    private final List free = new ArrayList();
+
+    /**
+     * @return a cleared buffer, which must be handed back with release()
+     */
+    public ByteBuffer acquire() {
+        if (free.isEmpty()) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        ByteBuffer buffer = (ByteBuffer)free.remove(free.size() - 1);
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (free.size() < MAX_POOLED) {
+            free.add(buffer);
+        }
+    }
+}
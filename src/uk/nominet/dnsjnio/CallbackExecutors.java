@@ -0,0 +1,206 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for running ResolverListener callbacks.
+ * By default the callbacks are run on a shared pool of daemon threads,
+ * which grows as needed (listeners may block) up to a fixed limit, and
+ * shrinks again when idle. Once every thread is busy, callbacks wait in a
+ * bounded queue. Callbacks are never run on a select thread unless the
+ * resolver was given direct().
+ */
+public class CallbackExecutors {
+    /** The most threads the default pool will start */
+    public static final int DEFAULT_MAX_THREADS = 512;
+
+    /** The callbacks the default pool queues for each thread, once all are busy */
+    public static final int QUEUED_PER_THREAD = 8;
+
+    private static final int IDLE_SECONDS = 60;
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private CallbackExecutors() {
+    }
+
+    /**
+     * @return the shared pool used unless an executor is set on the resolver
+     */
+    public static Executor getDefault() {
+        return DefaultHolder.EXECUTOR;
+    }
+
+    // The pool is only started when it is first needed
+    private static class DefaultHolder {
+        static final Executor EXECUTOR = newBoundedPool(DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     * Create a pool of daemon threads, which starts a thread whenever a
+     * callback arrives and none is free, up to the given limit. Threads
+     * which have been idle for a minute are stopped, down to a core of a
+     * couple per processor. Once every thread is busy, callbacks are queued,
+     * up to QUEUED_PER_THREAD for each thread.
+     * @param maxThreads the most threads to start
+     */
+    public static Executor newBoundedPool(int maxThreads) {
+        return newBoundedPool(maxThreads, maxThreads * QUEUED_PER_THREAD);
+    }
+
+    /**
+     * Create a pool of daemon threads as above, with the given queue size.
+     * Once the queue is full as well, a thread which submits a callback waits
+     * for room in the queue - except for a select thread, which must not be
+     * held up, and instead starts an extra thread for the callback.
+     * @param maxThreads the most threads to start
+     * @param queueSize the most callbacks to queue
+     */
+    public static Executor newBoundedPool(int maxThreads, int queueSize) {
+        int coreThreads = Math.min(maxThreads, Runtime.getRuntime().availableProcessors() * 2);
+        return new CallbackPool(coreThreads, maxThreads, queueSize);
+    }
+
+    /**
+     * Run each callback on the thread which returns the response - usually a
+     * select thread. Only for listeners which return quickly, and never block:
+     * no other I/O is done on the loop while a callback runs.
+     */
+    public static Executor direct() {
+        return DIRECT;
+    }
+
+    /**
+     * Run each callback on a new virtual thread. Needs Java 21 or later.
+     * @throws UnsupportedOperationException if virtual threads aren't available
+     */
+    public static Executor newVirtualThreadPerTask() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor", new Class[0]);
+            return (Executor)m.invoke(null, new Object[0]);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads are not available : " + e);
+        }
+    }
+
+    private static class CallbackPool extends ThreadPoolExecutor {
+        // Callbacks submitted which have not yet finished
+        private final AtomicInteger submitted = new AtomicInteger();
+
+        CallbackPool(int coreThreads, int maxThreads, int queueSize) {
+            super(coreThreads, maxThreads, IDLE_SECONDS, TimeUnit.SECONDS,
+                    new CallbackQueue(queueSize), new ResponderThreadFactory(),
+                    new OverflowPolicy());
+            ((CallbackQueue)getQueue()).pool = this;
+        }
+
+        public void execute(Runnable task) {
+            submitted.incrementAndGet();
+            try {
+                super.execute(task);
+            } catch (RuntimeException e) {
+                submitted.decrementAndGet();
+                throw e;
+            }
+        }
+
+        protected void afterExecute(Runnable task, Throwable t) {
+            submitted.decrementAndGet();
+        }
+
+        // Every thread is busy and the queue is full
+        void overflow(final Runnable task) {
+            if (DnsController.isSelectThread()) {
+                getThreadFactory().newThread(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            submitted.decrementAndGet();
+                        }
+                    }
+                }).start();
+                return;
+            }
+            try {
+                getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted waiting to queue callback");
+            }
+        }
+    }
+
+    // Only queues a callback when no thread is free and no more can be
+    // started, so that the pool grows before callbacks wait
+    private static class CallbackQueue extends LinkedBlockingQueue {
+        private CallbackPool pool;
+
+        CallbackQueue(int capacity) {
+            super(capacity);
+        }
+
+        public boolean offer(Object task) {
+            if ((pool.submitted.get() > pool.getPoolSize())
+                    && (pool.getPoolSize() < pool.getMaximumPoolSize())) {
+                // Have the pool start another thread
+                return false;
+            }
+            return super.offer(task);
+        }
+
+        boolean queue(Object task) {
+            return super.offer(task);
+        }
+    }
+
+    private static class OverflowPolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Callback pool is shut down");
+            }
+            // Another thread may have reached the limit first
+            if (!((CallbackQueue)executor.getQueue()).queue(task)) {
+                ((CallbackPool)executor).overflow(task);
+            }
+        }
+    }
+
+    private static class ResponderThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "dnsjnio-responder-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
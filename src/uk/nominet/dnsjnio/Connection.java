@@ -19,9 +19,10 @@ package uk.nominet.dnsjnio;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import uk.nominet.dnsjnio.NonblockingResolver;
 
@@ -29,15 +30,22 @@ import uk.nominet.dnsjnio.NonblockingResolver;
  * The superclass for the TCP and UDP connections.
  * This class models a socket, and is called by the client, and the
  * DnsController nio control loop.
+ * Each Connection is pinned to a single SelectLoop, which does all its I/O.
  */
 public abstract class Connection {
     protected final static int SINGLE_PORT_BUFFER_SIZE = 64 * 1024;
     protected final static int BUFFER_SIZE = 4 * 1024;
+    // Received bytes still waiting to be framed - only held while a
+    // message is part way through arriving
     protected byte[] recvBytes;
+    protected final int bufferSize;
     protected ConnectionListener listener;
 
+    protected final SelectLoop loop;
     protected SelectionKey sk;
     protected LinkedList sendQ = new LinkedList();
+    // Queries waiting for the connection to open, in the order they were made
+    private final Queue queuedQueries = new ConcurrentLinkedQueue();
 
     protected ByteBuffer sendBuffer=null;
     protected int recvCount = 0;
@@ -47,20 +55,44 @@ public abstract class Connection {
     protected InetSocketAddress localAddress;
     private int state = State.CLOSED;
 
-    byte[] bytes;
-    protected ByteBuffer inBuf;
+    /**
+     * @param bufferSize the initial size of the buffer for partly received messages
+     */
+    Connection(ConnectionListener listener, int bufferSize, SelectLoop loop) {
+        this.listener = listener;
+        this.loop = loop;
+        this.bufferSize = bufferSize;
+    }
 
     Connection(ConnectionListener listener, int bufferSize) {
-        this.listener = listener;
-        recvBytes = new byte[bufferSize];
-        bytes = new byte[bufferSize];
-        inBuf = ByteBuffer.wrap(bytes);
+        this(listener, bufferSize, DnsController.nextLoop());
     }
 
     Connection(ConnectionListener listener) {
         this(listener, BUFFER_SIZE);
     }
 
+    /**
+     * @return the select loop which runs this Connection's I/O
+     */
+    public SelectLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Queue a query to be sent once the connection is open
+     */
+    public void queueQuery(QueryData qData) {
+        queuedQueries.offer(qData);
+    }
+
+    /**
+     * @return the oldest query waiting to be sent, or null if there are none
+     */
+    public QueryData pollQueuedQuery() {
+        return (QueryData)queuedQueries.poll();
+    }
+
     public void removeListener(ConnectionListener newListener) {
         if (listener == newListener) {
             listener = null;
@@ -101,8 +133,8 @@ public abstract class Connection {
             setRemoteAddress(remoteAddress);
             setLocalAddress(localAddress);
             setState(State.OPENING);
-            if (! DnsController.isSelectThread()) {
-                DnsController.invoke(new Runnable() {
+            if (! loop.isSelectThread()) {
+                loop.invoke(new Runnable() {
                     public void run() {
                         connect();
                     }
@@ -114,8 +146,8 @@ public abstract class Connection {
     }
 
     public boolean disconnect() {
-        if (! DnsController.isSelectThread()) {
-            DnsController.invoke(new Runnable() {
+        if (! loop.isSelectThread()) {
+            loop.invoke(new Runnable() {
                 public void run() {
                     close();
                 }
@@ -130,8 +162,8 @@ public abstract class Connection {
      * queue up some bytes to send and try to send it out
      */
     public void send(final byte[] out) {
-        if (! DnsController.isSelectThread()) {
-            DnsController.invoke(new Runnable() {
+        if (! loop.isSelectThread()) {
+            loop.invoke(new Runnable() {
                 public void run() {
                     send(out);
                 }
@@ -243,77 +275,10 @@ public abstract class Connection {
             ce.printStackTrace();
         }
         setState(State.CLOSED);
-        inBuf = null;
         recvBytes = null;
         recvCount = 0;
     }
 
-    protected void clearRecvBytes(int j) {
-        if (recvBytes != null) {
-            if (j == recvCount) {
-                recvCount = 0;
-            }
-            else {
-                byte[] temp = new byte[recvCount - j];
-                System.arraycopy(recvBytes, j, temp, 0, recvCount - j);
-                recvCount -= j; // Drop front of buffer
-                System.arraycopy(temp, 0, recvBytes, 0, recvCount);
-                temp=null;
-            }
-        }
-    }
-
-    protected void readFromChannel(ByteChannel sc) {
-        int len = 0;
-        ByteBuffer inputBuffer = inBuf; // save a local reference just in case it gets nulled out.
-
-        // TODO: probably need some type of synchronization on the input
-        // buffer because it gets nulled out in closeComplete due to
-        // timeout and then can potentially cause a crash here.
-        if(sc.isOpen() && state != State.CLOSED && inputBuffer != null)
-        {
-            try {
-                len = sc.read(inputBuffer);
-            } catch(IOException e) {
-                len=-1;
-            }
-            
-            if(len >= 0)
-            {
-                addToBuffer(bytes, len);
-                inBuf.clear();
-            }
-            else if(len < 0) {
-                closeComplete();
-            }
-        }
-    }
-
-    /**
-     * This method simply buffers the input.
-     * The send to user will be triggered when the end of input is reached.
-     */
-    protected void addToBuffer(byte[] buf, int len) {
-    	byte[] receivedBytes = recvBytes; // save a local reference just in case it gets nulled out.
-
-    	// TODO: probably need some type of synchronization on the received
-    	// bytes buffer. It gets nulled out in closeComplete due to timeout
-    	// and then can potentially cause a crash here.
-        if(buf != null && state != State.CLOSED && receivedBytes != null)
-        {
-            if (recvCount + len > receivedBytes.length) {
-                // Grow the buffer, we already kept a reference to the old
-            	// buffer so we don't need to make a temporary copy of it.
-                recvBytes = null;
-                recvBytes = new byte[recvCount + len];
-                System.arraycopy(receivedBytes, 0, recvBytes, 0, recvCount);
-                receivedBytes = recvBytes; // reset the reference
-            }
-            System.arraycopy(buf, 0, receivedBytes, recvCount, len);
-            recvCount += len;
-        }
-    }
-
     protected void sendToUser(byte[] packet) {
         if (listener != null) {
             if (NonblockingResolver.isDataComplete(packet)) {
@@ -16,27 +16,30 @@ limitations under the License.
 
 package uk.nominet.dnsjnio;
 
-import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class controls the I/O using the java.nio package.
- * A select thread is created, which runs the select loop
- * forever.
- * A queue of invocations is kept for the thread, and an
- * outgoing queue is also instantiated.
+ * A group of select threads is created, each of which runs
+ * its own select loop (with its own Selector and queue of
+ * invocations) forever.
+ * Connections are spread across the loops, and each Connection
+ * stays on the loop it was given.
+ * The number of loops is read from the "dnsjnio.selectThreads"
+ * system property, and defaults to the number of processors.
  * One DnsController services all resolvers
  */
 public class DnsController {
-    private static DnsController INSTANCE = new DnsController();
-    private static List invocations;
-    private static Selector selector;
-    private static Thread selectThread;
+    /** The system property used to set the number of select threads */
+    public static final String SELECT_THREADS_PROPERTY = "dnsjnio.selectThreads";
+
+    private static DnsController INSTANCE;
+    private static SelectLoop[] loops;
+    private static final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    static {
+        INSTANCE = new DnsController();
+    }
 
     private DnsController() {
         initialise();
@@ -46,87 +49,60 @@ public class DnsController {
         return INSTANCE;
     }
 
-    public static Selector getSelector() {
-        return selector;
-    }
-
     private static void initialise() {
-        invocations = new LinkedList();
-        try {
-            selector = Selector.open();
-        } catch(IOException ie) {
-            // log error?
-            System.out.println("Error - can't open selector\r\n" + ie);
-        }
-        selectThread = new Thread("DnsSelect") {
-            public void run() {
-            	while (true) {
-	            	try {
-	            		selectLoop();
-	            	} catch (Throwable t) {
-                        System.out.println("Caught exception in DnsSelect thread\r\n" + t);
-	            	}
-            	}
+        int numLoops = Runtime.getRuntime().availableProcessors();
+        String prop = System.getProperty(SELECT_THREADS_PROPERTY);
+        if (prop != null) {
+            try {
+                numLoops = Integer.parseInt(prop.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Error - bad value for " + SELECT_THREADS_PROPERTY + " : " + prop);
             }
-        };
-        selectThread.setDaemon(true);
-        selectThread.start();
+        }
+        if (numLoops < 1) {
+            numLoops = 1;
+        }
+        loops = new SelectLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            loops[i] = new SelectLoop("DnsSelect-" + i);
+            loops[i].start();
+        }
     }
 
-    private static void selectLoop() {
-        Runnable task;
-        while (true) {
-            do {
-                task = null;
-                synchronized (invocations) {
-                    if (invocations.size() > 0) {
-                        task = (Runnable)(invocations.get(0));
-                        invocations.remove(0);
-                        task.run();
-                    }
-                }
-            } while(task != null);
-
-            try {
-            	// We Could get rid of timer thread by calling selector.select(timeout) here.
-            	// We'd need to keep a list of all the expected absolute timeouts and wait for the next one
-            	// That could get fairly busy if there's a lot of outstanding requests,
-            	// and the select loop is not the right place to waste time.
-            	// I just don't know whether a separate polling thread (Timer) is the right answer!
-                selector.select();
-            } catch(Exception e) {
-                System.out.println("Exception caught in select loop\r\n" + e);
-            }
+    /**
+     * @return the number of select threads
+     */
+    public static int getNumLoops() {
+        return loops.length;
+    }
 
-            // process any selected keys
-            Set selectedKeys = selector.selectedKeys();
-            Iterator it = selectedKeys.iterator();
-            while(it.hasNext()) {
-                SelectionKey key = (SelectionKey)(it.next());
-                Connection conn = (Connection)key.attachment();
-                int kro = key.readyOps();
-                if((kro & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
-                    conn.doRead();
-                }
-                if((kro & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
-                    conn.doWrite();
-                }
-                if((kro & SelectionKey.OP_CONNECT) == SelectionKey.OP_CONNECT) {
-                    conn.doConnect();
-                }
-                it.remove();
-            }
-        }
+    /**
+     * @param i the index of the loop, from 0 to getNumLoops() - 1
+     * @return the ith select loop
+     */
+    public static SelectLoop getLoop(int i) {
+        return loops[i];
     }
 
-    public static void invoke(Runnable task) {
-        synchronized (invocations) {
-            invocations.add(invocations.size(), task);
-        }
-        selector.wakeup();
+    /**
+     * Pick the loop a new Connection (or set of Connections) should be pinned to.
+     * The loops are handed out in turn.
+     * @return the next select loop
+     */
+    public static SelectLoop nextLoop() {
+        int i = nextLoop.getAndIncrement() & Integer.MAX_VALUE;
+        return loops[i % loops.length];
     }
 
+    /**
+     * @return true if the calling thread is any of the select threads
+     */
     public static boolean isSelectThread() {
-        return Thread.currentThread() == selectThread;
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i].isSelectThread()) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -7,8 +7,9 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 Copyright 2007 Nominet UK
@@ -26,20 +27,32 @@ See the License for the specific language governing permissions and
 limitations under the License.
  */
 public class ExtendedNonblockingResolver implements Resolver {
-	private static java.util.Random random = new java.util.Random();
 
+	/**
+	 * One client request, and the state of its retries and failover. It is
+	 * driven by the completion of its queries, on whichever thread completes
+	 * them (usually a select thread), so all its state is guarded by the
+	 * request itself. Queries are never sent while holding that lock, as
+	 * sending may block (or call straight back).
+	 */
 	private class QueryRequest {
 		protected ResponseQueue responseQueue;
 
 		protected Object responseId;
 
+		protected ResolverListener listener;
+
 		protected Message query;
+
+		protected NonblockingResolver[] resolvers;
 		
-		public QueryRequest(ResponseQueue responseQueue, Object responseId,
-				Message query) {
+		public QueryRequest(ResponseQueue responseQueue, ResolverListener listener,
+				Object responseId, Message query, NonblockingResolver[] resolvers) {
 			this.responseQueue = responseQueue;
+			this.listener = listener;
 			this.responseId = responseId;
 			this.query = query;
+			this.resolvers = resolvers;
 		}
 
 		// Each client request needs its own set of these
@@ -50,230 +63,190 @@ public class ExtendedNonblockingResolver implements Resolver {
 		protected int currentIndex = 0;
 
 		protected NonblockingResolver currentResolver = null;
-	}
-
-	static Integer threadCount = new Integer(0);
-    static final Object threadCountLock = new Object();
 
-	private class ResolutionThread extends Thread {
-		NonblockingResolver[] resolvers;
+		protected boolean done = false;
 
-		ExtendedNonblockingResolver eres;
-		
-		public ResolutionThread(ExtendedNonblockingResolver eres) {
-			int count = 0;
-			synchronized (threadCountLock) {
-				count = threadCount.intValue();
-				threadCount = new Integer(threadCount.intValue() + 1);
+		public void start() {
+			Attempt attempt;
+			synchronized (this) {
+				attempt = nextResolver();
 			}
-			setName("EnbrResolutionThread-" + count);
-			List l = eres.resolvers;
-			resolvers = (NonblockingResolver[]) l
-					.toArray(new NonblockingResolver[l.size()]);
-			if (eres.loadBalance) {
-				int nresolvers = resolvers.length;
-				/*
-				 * Note: this is not synchronized, since the worst thing that
-				 * can happen is a random ordering, which is ok.
-				 */
-				int start = eres.lbStart++ % nresolvers;
-				if (eres.lbStart > nresolvers)
-					eres.lbStart %= nresolvers;
-				if (start > 0) {
-					NonblockingResolver[] shuffle = new NonblockingResolver[nresolvers];
-					for (int i = 0; i < nresolvers; i++) {
-						int pos = (i + start) % nresolvers;
-						shuffle[i] = resolvers[pos];
-					}
-					resolvers = shuffle;
-				}
-			}
-		}
-
-		private Map clientRequests = new ConcurrentHashMap();
-
-		ResponseQueue queryQueue = new ResponseQueue();
-
-		private void startNewRequest(final Message query, final Object id,
-				final ResponseQueue responseQueue) {
-			// Send the first request
-			// This is done in the client thread by making an asynchronous
-			// request
-			// using the queryQueue as the response queue.
-			// @todo@ Do we need to check the ID to make sure it is not
-			// currently in use?
-			// Send a query on the next resolver
-			QueryRequest request = new QueryRequest(responseQueue, id, query);
-//			String name = request.query.getQuestion().getName().toString();
-//			System.out.println("Sending first request for " + name
-//					+ " to new resolver " + request.currentIndex);
-
-			clientRequests.put(request.responseId, request);
-			sendQueryToNextResolver(request);
+			attempt.send();
 		}
 
-		private void processResponse(Response response, QueryRequest request) {
-			// Stick the response in the client queue
-			if (clientRequests.containsKey(request.responseId)) {
-				// First take the client request out the list
-				clientRequests.remove(request.responseId);
-
-				response.setId(request.responseId);
-				response.setException(false);
-				// Now queue the response for the client.
-				request.responseQueue.insert(response);
-			} else {
-				// No longer have the request so must have received a response already (and removed the query from the list). 
-				// Silently ignore it.
-				// Thanks to Max Valjanski for helping to identify the need to remove the earlier misleading error output!
+		private void answered(Message message) {
+			synchronized (this) {
+				if (done) {
+					// Already answered (or given up) - silently ignore it.
+					// Thanks to Max Valjanski for helping to identify the need to remove the earlier misleading error output!
+					return;
+				}
+				done = true;
+				outstanding--;
 			}
+			processResponse(message);
 		}
 
-		// private void queryLoop(Message query, Object clientId, ResponseQueue
-		// clientQueue) {
-		public void run() {
-			// The first server is queried for the name, and the response
-			// awaited.
-			// If the response is good, then it is returned to the caller. If it
-			// times out, then the next resolver is tried at the same time as
-			// retrying
-			// the first. If there is a transport problem, then the first
-			// resolver is not
-			// retried at all, but the action moves on to the next resolver
-			// Object[] inprogress = new Object[resolvers.length];
-			while (true) {
-				// We have a load of client requests currently on the go.
-				// each client request may have multiple queries outstanding on
-				// multiple resolvers.
-				// however, ALL dns queries use the same responseQueue
-				// so we just wait on the next response and do the appropriate
-				// thing
-				Response nextResponse = queryQueue.getItem();
-				// Now we need to match it up to a request
-				QueryRequest request = ((QueryId)(nextResponse.getId())).request;
-				request.outstanding--;
-
-				// Then do the appropriate thing depending on the response
-				if (nextResponse.isException()) {
-					// deal with exception
-					// If timeout then we should retry up to retries times
-					if (nextResponse.getException() instanceof InterruptedIOException) {
-						dealWithTimeout(nextResponse, request);
-					} else {
-//						System.out.println("Got other exception ("
-//								+ nextResponse.getException()
-//								+ ") - ignoring that server");
-					}
-					if (request.outstanding == 0) {
-						sendExceptionToClient(request);
-						continue;
-					}
-				} else {
-					// deal with good response
-					processResponse(nextResponse, request);
-					continue;
+		private void failed(Attempt failed, Exception e) {
+			// If a query times out, then it is retried (up to retries times),
+			// and the next resolver is tried at the same time. If there is a
+			// transport problem, then that resolver is not retried at all,
+			// but the action moves on to the next resolver.
+			Attempt retry = null;
+			Attempt next = null;
+			boolean giveUp;
+			synchronized (this) {
+				if (done) {
+					return;
 				}
-				if (((QueryId)(nextResponse.getId())).resolver == (request.currentResolver)) {
-					// Response from the latest resolver - let's try the
-					// next one
-					// (if there is one)
-//					System.out.println("Got response for currentResolver ("
-//							+ request.currentResolver
-//							+ ") - trying next resolver for first time");
-					queryNextResolver(request);
+				outstanding--;
+				if (e instanceof InterruptedIOException) {
+					retry = retry(failed.resolver);
 				}
-				if (request.outstanding == 0) {
-					sendExceptionToClient(request);
-					continue;
+				if ((failed.resolver == currentResolver)
+						&& (currentIndex < resolvers.length)) {
+					next = nextResolver();
 				}
+				giveUp = (outstanding == 0);
+				done = giveUp;
 			}
-		}
-
-		private void dealWithTimeout(Response nextResponse, QueryRequest request) {
-			NonblockingResolver res = ((QueryId)(nextResponse.getId())).resolver;
-//			System.out.println("Got an exception from " + res);
-			int numRetries = ((Integer) (request.sent.get(res))).intValue() - 1;
-			if (numRetries < retries) {
-//				System.out.println("Sending again to " + res);
-				QueryId id = new QueryId(request, res);
-				
-				// Create a new query with a different QID here
-				
-				Message newQuery = (Message)(request.query.clone());
-				newQuery.getHeader().setID(random.nextInt(65535));
-		
-				// Double the timeout here
-				int resolverTimeout = res.getTimeoutMillis();
-				int newTimeout = resolverTimeout << numRetries;
-				
-				res.sendAsync(newQuery, id, newTimeout, false, queryQueue);
-				request.outstanding++;
-//				System.out.println("oustanding = " + request.outstanding);
-				Integer i = (Integer) (request.sent.get(res));
-				i = new Integer(i.intValue() + 1);
-				request.sent.remove(res);
-				request.sent.put(res, i);
-			} else {
-//				System.out.println("Not sending again to " + res + ", as "
-//						+ retries + " retries exceeded");
+			if (giveUp) {
+				sendExceptionToClient();
+				return;
+			}
+			if (retry != null) {
+				retry.send();
+			}
+			if (next != null) {
+				next.send();
 			}
 		}
 
-		private void queryNextResolver(QueryRequest request) {
-			if (request.currentIndex < resolvers.length) {
-				// Send a query on the next resolver
-//				System.out.println("Sending to new resolver "
-//						+ request.currentIndex);
-				sendQueryToNextResolver(request);
-			} else {
-//				System.out.println("No more resolvers to try");
+		/** Must hold the lock */
+		private Attempt retry(NonblockingResolver res) {
+			int numRetries = ((Integer) (sent.get(res))).intValue() - 1;
+			if (numRetries >= retries) {
+				return null;
 			}
+			sent.put(res, new Integer(numRetries + 2));
+			outstanding++;
+			// Double the timeout here
+			return new Attempt(res, res.getTimeoutMillis() << numRetries, false);
 		}
-		
-		private class QueryId {
-			protected QueryRequest request;
-			protected NonblockingResolver resolver;
-			public QueryId (QueryRequest request, NonblockingResolver resolver) {
-				this.request = request;
-				this.resolver = resolver;
-			}
+
+		/** Must hold the lock */
+		private Attempt nextResolver() {
+			currentResolver = resolvers[currentIndex++];
+			sent.put(currentResolver, new Integer(1));
+			outstanding++;
+			return new Attempt(currentResolver, currentResolver
+					.getTimeoutMillis(), currentResolver.isTCP());
 		}
 
-		private void sendQueryToNextResolver(QueryRequest request) {
-			request.currentResolver = resolvers[request.currentIndex++];
-			QueryId id = new QueryId (request, request.currentResolver);
-			
-			// Create a new query with a different QID here
-			
-			Message newQuery = (Message)(request.query.clone());
-			newQuery.getHeader().setID(random.nextInt(65535));
-			
-			request.currentResolver.sendAsync(newQuery,
-					id, queryQueue);
-			request.sent.put(request.currentResolver, new Integer(1));
-			request.outstanding++;
-//			System.out.println("outstanding = " + request.outstanding);
+		private void processResponse(Message message) {
+			if (listener != null) {
+				returnToListener(listener, new ResponderTask(listener,
+						responseId, message));
+				return;
+			}
+			Response response = new Response();
+			response.setId(responseId);
+			response.setMessage(message);
+			// Now queue the response for the client.
+			responseQueue.insert(response);
 		}
 
-		private void sendExceptionToClient(QueryRequest request) {
+		private void sendExceptionToClient() {
 			// Uh oh! Run out of nameservers to query
 			// Best throw TimeoutException
-//			System.out.println("Sending back exception to client");
-
-			// First take the client request out the list
-			clientRequests.remove(request.responseId);
-
+			if (listener != null) {
+				returnToListener(listener, new ResponderTask(listener,
+						responseId, new InterruptedIOException()));
+				return;
+			}
 			Response replyToClient = new Response();
 			replyToClient.setException(new InterruptedIOException());
 			replyToClient.setException(true);
-			replyToClient.setId(request.responseId);
-			request.responseQueue.insert(replyToClient);
+			replyToClient.setId(responseId);
+			responseQueue.insert(replyToClient);
 		}
 
+		/**
+		 * One query sent to one resolver for this request. It is called
+		 * back straight from the transaction.
+		 */
+		private class Attempt implements InlineListener {
+			protected NonblockingResolver resolver;
+
+			protected int timeout;
+
+			protected boolean tcp;
+
+			public Attempt(NonblockingResolver resolver, int timeout,
+					boolean tcp) {
+				this.resolver = resolver;
+				this.timeout = timeout;
+				this.tcp = tcp;
+			}
+
+			public void send() {
+				// The resolver sends it with a different QID
+				resolver.sendAsyncWithNewId(query, this, timeout, tcp, this);
+			}
+
+			public void receiveMessage(Object id, Message m) {
+				answered(m);
+			}
+
+			public void handleException(Object id, Exception e) {
+				failed(this, e);
+			}
+		}
+	}
+
+	/**
+	 * Get the resolvers to query for a new request, in the order to query
+	 * them
+	 */
+	private NonblockingResolver[] getResolverOrder() {
+		NonblockingResolver[] res = getResolvers();
+		if (loadBalance && (res.length > 1)) {
+			int nresolvers = res.length;
+			/*
+			 * Note: this is not synchronized, since the worst thing that
+			 * can happen is a random ordering, which is ok.
+			 */
+			int start = lbStart++ % nresolvers;
+			if (lbStart > nresolvers)
+				lbStart %= nresolvers;
+			if (start > 0) {
+				NonblockingResolver[] shuffle = new NonblockingResolver[nresolvers];
+				for (int i = 0; i < nresolvers; i++) {
+					int pos = (i + start) % nresolvers;
+					shuffle[i] = res[pos];
+				}
+				res = shuffle;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Call the listener back on the callback executor - or straight away if
+	 * it is an inline listener (such as a future)
+	 */
+	private void returnToListener(ResolverListener listener, ResponderTask task) {
+		if (listener instanceof InlineListener) {
+			task.run();
+		} else {
+			callbackExecutor.execute(task);
+		}
 	}
 
 	private static final int quantum = 5;
 
+	private Executor callbackExecutor = CallbackExecutors.getDefault();
+
 	private List resolvers;
 
 	private boolean loadBalance = false;
@@ -282,9 +255,7 @@ public class ExtendedNonblockingResolver implements Resolver {
 
 	private int retries = 3;
 
-	static int idCount = 0;
-
-	private ResolutionThread resolutionThread;
+	static final AtomicInteger idCount = new AtomicInteger(0);
 
 	public void
 	setPort(int port) {
@@ -345,8 +316,6 @@ public class ExtendedNonblockingResolver implements Resolver {
 	 *                Failure occured initializing NonblockingResolvers
 	 */
 	public static ExtendedNonblockingResolver newInstance() throws UnknownHostException {
-		// Don't allow the this reference to escape during construction
-		// (a thread is created and started in the constructor)
 		ExtendedNonblockingResolver enbr = new ExtendedNonblockingResolver();
 		return enbr;		
 	}
@@ -362,12 +331,6 @@ public class ExtendedNonblockingResolver implements Resolver {
 			}
 		} else
 			resolvers.add(new NonblockingResolver());
-		startResolutionThread();
-	}
-
-	private void startResolutionThread() {
-		resolutionThread = new ResolutionThread(this);
-		resolutionThread.start();
 	}
 
 	/**
@@ -380,8 +343,6 @@ public class ExtendedNonblockingResolver implements Resolver {
 	 *                Failure occured initializing NonblockingResolvers
 	 */
 	public static ExtendedNonblockingResolver newInstance(NonblockingResolver[] res) throws UnknownHostException {
-		// Don't allow the this reference to escape during construction
-		// (a thread is created and started in the constructor)
 		ExtendedNonblockingResolver enbr = new ExtendedNonblockingResolver(res);
 		return enbr;		
 	}
@@ -391,7 +352,6 @@ public class ExtendedNonblockingResolver implements Resolver {
 		resolvers = new ArrayList();
 		for (int i = 0; i < res.length; i++)
 			resolvers.add(res[i]);
-		startResolutionThread();
 	}
 
 	/**
@@ -413,14 +373,9 @@ public class ExtendedNonblockingResolver implements Resolver {
 	 *             An error occurred while sending or receiving.
 	 */
 	public Message send(Message query) throws IOException {
-		ResponseQueue queue = new ResponseQueue();
-		sendAsync(query, queue);
-		Response response = queue.getItem();
-		if (response.isException()) {
-			throw new IOException();
-		} else {
-			return response.getMessage();
-		}
+		ResponseFuture future = new ResponseFuture();
+		sendAsync(query, future);
+		return future.getResponse();
 	}
 
 	/**
@@ -435,18 +390,123 @@ public class ExtendedNonblockingResolver implements Resolver {
 	 * @return An identifier, which is also a parameter in the callback
 	 */
 	public Object sendAsync(final Message query, final ResponseQueue queue) {
-		Object id = new Integer(idCount++);
+		Object id = new Integer(idCount.getAndIncrement());
 		sendAsync(query, id, queue);
 		return id;
 	}
 
 	public void sendAsync(final Message query, final Object id,
 			final ResponseQueue responseQueue) {
-		resolutionThread.startNewRequest(query, id, responseQueue);
+		new QueryRequest(responseQueue, null, id, query, getResolverOrder())
+				.start();
 	}
-	
+
+	/**
+	 * Asynchronously sends a message to multiple servers, potentially multiple
+	 * times, calling the listener back (on the callback executor) with the
+	 * first successful response, or an exception.
+	 * 
+	 * @param query
+	 *            The query to send
+	 * @param listener
+	 *            The object to call back
+	 * @return An identifier, which is also a parameter in the callback
+	 */
 	public Object sendAsync(final Message query, final ResolverListener listener) {
-		throw new RuntimeException("Listener callback not implemented - use ResponseQueue instead!");
+		Object id = new Integer(idCount.getAndIncrement());
+		new QueryRequest(null, listener, id, query, getResolverOrder())
+				.start();
+		return id;
+	}
+
+	/**
+	 * Asynchronously sends a message to multiple servers, potentially multiple
+	 * times, as for sendAsync(Message, ResponseQueue). The future is completed
+	 * on the select thread which got the answer, so any dependent stage which
+	 * does real work should be run with one of the *Async methods.
+	 * 
+	 * @param query
+	 *            The query to send
+	 * @return the future response, completed exceptionally with an
+	 *         InterruptedIOException if no server answered
+	 */
+	public CompletableFuture<Message> sendAsync(final Message query) {
+		ResponseFuture future = new ResponseFuture();
+		sendAsync(query, future);
+		return future;
+	}
+
+	/**
+	 * Asynchronously sends a batch of queries, as sendAsync(Message,
+	 * ResponseQueue) does for one. The first query for each is sent as part
+	 * of one batch, which is handed to the select threads at once.
+	 * 
+	 * @param queries
+	 *            The queries to send
+	 * @param queue
+	 *            The ResponseQueue to hold the responses
+	 * @return the identifiers of the queries, in the order of the queries
+	 */
+	public List<Object> sendBatch(final List<Message> queries, final ResponseQueue queue) {
+		List<Object> ids = new ArrayList<Object>(queries.size());
+		SelectLoop.beginBatch();
+		try {
+			for (int i = 0; i < queries.size(); i++) {
+				ids.add(sendAsync(queries.get(i), queue));
+			}
+		} finally {
+			SelectLoop.endBatch();
+		}
+		return ids;
+	}
+
+	/**
+	 * Asynchronously sends a batch of queries, as sendAsync(Message) does
+	 * for one, handing the first query for each to the select threads at
+	 * once.
+	 * 
+	 * @param queries
+	 *            The queries to send
+	 * @return the future responses, in the order of the queries
+	 */
+	public List<CompletableFuture<Message>> sendBatch(final List<Message> queries) {
+		List<CompletableFuture<Message>> futures = new ArrayList<CompletableFuture<Message>>(
+				queries.size());
+		SelectLoop.beginBatch();
+		try {
+			for (int i = 0; i < queries.size(); i++) {
+				futures.add(sendAsync(queries.get(i)));
+			}
+		} finally {
+			SelectLoop.endBatch();
+		}
+		return futures;
+	}
+
+	/**
+	 * Set the Executor which runs the ResolverListener callbacks
+	 * 
+	 * @see CallbackExecutors
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("No callback executor");
+		}
+		this.callbackExecutor = executor;
+	}
+
+	/**
+	 * Let the number of queries in flight to each server be set by an
+	 * AdaptiveLimit, found from that server's round trip times and timeouts
+	 * 
+	 * @param adaptive
+	 *            true for adaptive limits, false to go back to no limits
+	 * @see NonblockingResolver#setAdaptiveLimit(boolean)
+	 */
+	public void setAdaptiveLimits(boolean adaptive) {
+		for (int i = 0; i < resolvers.size(); i++) {
+			((NonblockingResolver) resolvers.get(i)).setAdaptiveLimit(adaptive);
+		}
 	}
 
 	/** Returns the nth resolver used by this ExtendedResolver */
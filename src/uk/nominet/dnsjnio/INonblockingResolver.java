@@ -16,6 +16,9 @@ limitations under the License.
 
 package uk.nominet.dnsjnio;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import org.xbill.DNS.*;
 
 /**
@@ -50,11 +53,47 @@ public interface INonblockingResolver extends Resolver {
             sendAsync(final Message query, Object id, final ResponseQueue responseQueue);
     public void
             sendAsync(final Message query, Object id, int timeout, boolean useTCP, final ResponseQueue responseQueue);
+
+    /**
+     * Asynchronously sends a message to a single nameserver.
+     * The future is completed on a select thread, so any dependent stage
+     * which does real work should be run with one of the *Async methods.
+     * @param query The query to send
+     * @return the future response, completed exceptionally if the query fails
+     */
+    public CompletableFuture<Message> sendAsync(final Message query);
+
+    /**
+     * Asynchronously sends a batch of queries, as sendAsync(Message, 
+     *  ResponseQueue) does for one. The whole batch is handed to the select 
+     *  threads at once, rather than query by query.
+     * @param queries The queries to send
+     * @param responseQueue the queue for the responses
+     * @return the identifiers of the queries, in the order of the queries
+     */
+    public List<Object> sendBatch(final List<Message> queries, final ResponseQueue responseQueue);
+
+    /**
+     * Asynchronously sends a batch of queries, as sendAsync(Message) does
+     *  for one. The whole batch is handed to the select threads at once,
+     *  rather than query by query.
+     * @param queries The queries to send
+     * @return the future responses, in the order of the queries
+     */
+    public List<CompletableFuture<Message>> sendBatch(final List<Message> queries);
     
     /**
      * Set single port mode on or off for TCP
-     * THIS ONLY WORKS FOR TCP-BASED QUERIES - UDP QUERIES WILL ALWAYS USE A RANDOM PORT
+     * THIS ONLY WORKS FOR TCP-BASED QUERIES - USE setSingleUdpPort() FOR UDP QUERIES
      * @param useSameTcpPort should same port be used for all the queries?
      */
     public void setSingleTcpPort(boolean useSameTcpPort);
+
+    /**
+     * Set single port mode on or off for UDP
+     * If on, one UDP socket is kept open and shared by all the UDP queries,
+     * with responses matched to queries by header ID.
+     * @param useSameUdpPort should same port be used for all the queries?
+     */
+    public void setSingleUdpPort(boolean useSameUdpPort);
 }
@@ -0,0 +1,220 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocator for 16-bit DNS header IDs on a single upstream.
+ * A bitset holds one bit for each ID in use. Free IDs are picked at random,
+ * so they can't be predicted, and an ID is only handed out again once it has
+ * been released. All operations are lock-free.
+ * <p>
+ * Each single port shard has an allocator for its own port. Queries which
+ * are not sent over a single port take their IDs from the allocator for 
+ * their upstream (allocateUpstream()), which is shared by every resolver, so 
+ * they never collide on the shared UDPSocketPool sockets. An upstream's 
+ * allocator only exists while some of its IDs are in use.
+ */
+public class IdAllocator {
+    public static final int NUM_IDS = 65536;
+    // Random guesses to make before scanning the bitset for a free ID
+    private static final int RANDOM_PROBES = 8;
+
+    private static Random random = new Random();
+
+    private static final ConcurrentHashMap<InetSocketAddress, IdAllocator> upstreamAllocators = 
+        new ConcurrentHashMap<InetSocketAddress, IdAllocator>();
+
+    private final AtomicLongArray inUse = new AtomicLongArray(NUM_IDS / 64);
+    // Number of IDs in use, or -1 once an upstream's allocator has been retired
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Reserve a random free ID from the allocator shared by all the resolvers
+     * which query the given server, creating it if necessary.
+     * @param upstream the server's address and port
+     * @return the ID, or -1 if every ID for that server is in use
+     */
+    public static int allocateUpstream(InetSocketAddress upstream) {
+        while (true) {
+            IdAllocator allocator = upstreamAllocators.get(upstream);
+            if (allocator == null) {
+                allocator = new IdAllocator();
+                IdAllocator existing = upstreamAllocators.putIfAbsent(upstream, allocator);
+                if (existing != null) {
+                    allocator = existing;
+                }
+            }
+            if (allocator.retain()) {
+                int id = allocator.takeFreeId();
+                if (id < 0) {
+                    allocator.unretain(upstream);
+                }
+                return id;
+            }
+            // The last ID was released as we looked - replace the allocator
+            upstreamAllocators.remove(upstream, allocator);
+        }
+    }
+
+    /**
+     * Release an ID taken with allocateUpstream(). The server's allocator is
+     * dropped once none of its IDs are in use.
+     */
+    public static void releaseUpstream(InetSocketAddress upstream, int id) {
+        IdAllocator allocator = upstreamAllocators.get(upstream);
+        if ((allocator != null) && allocator.clearBit(id)) {
+            allocator.unretain(upstream);
+        }
+    }
+
+    /**
+     * @return the allocator for the given server, or null if it has no IDs in use
+     */
+    static IdAllocator getUpstream(InetSocketAddress upstream) {
+        return upstreamAllocators.get(upstream);
+    }
+
+    /**
+     * Reserve a specific ID.
+     * @return true if the ID was free, and is now reserved for the caller
+     */
+    public boolean tryAcquire(int id) {
+        if (setBit(id)) {
+            count.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reserve a random free ID.
+     * @return the ID, or -1 if every ID is in use
+     */
+    public int allocate() {
+        int id = takeFreeId();
+        if (id >= 0) {
+            count.incrementAndGet();
+        }
+        return id;
+    }
+
+    /**
+     * Release an ID, so that it can be handed out again
+     */
+    public void release(int id) {
+        if (clearBit(id)) {
+            count.decrementAndGet();
+        }
+    }
+
+    private int takeFreeId() {
+        for (int i = 0; i < RANDOM_PROBES; i++) {
+            int id = random.nextInt(NUM_IDS);
+            if (setBit(id)) {
+                return id;
+            }
+        }
+        // Busy upstream - scan for a word with a free bit, from a random start
+        int numWords = inUse.length();
+        int start = random.nextInt(numWords);
+        for (int i = 0; i < numWords; i++) {
+            int word = (start + i) % numWords;
+            long bits;
+            while ((bits = inUse.get(word)) != -1L) {
+                // Pick the first free bit after a random offset
+                int offset = random.nextInt(64);
+                int bitIndex = (Long.numberOfTrailingZeros(Long.rotateRight(~bits, offset)) + offset) & 63;
+                if (inUse.compareAndSet(word, bits, bits | (1L << bitIndex))) {
+                    return (word << 6) | bitIndex;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean setBit(int id) {
+        id &= 0xFFFF;
+        int word = id >>> 6;
+        long bit = 1L << (id & 63);
+        while (true) {
+            long bits = inUse.get(word);
+            if ((bits & bit) != 0) {
+                return false;
+            }
+            if (inUse.compareAndSet(word, bits, bits | bit)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean clearBit(int id) {
+        id &= 0xFFFF;
+        int word = id >>> 6;
+        long bit = 1L << (id & 63);
+        while (true) {
+            long bits = inUse.get(word);
+            if ((bits & bit) == 0) {
+                return false;
+            }
+            if (inUse.compareAndSet(word, bits, bits & ~bit)) {
+                return true;
+            }
+        }
+    }
+
+    // Count an ID in use before taking it, unless the allocator was retired
+    private boolean retain() {
+        while (true) {
+            int c = count.get();
+            if (c < 0) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Retire and drop an upstream's allocator once its last ID is released,
+    // so that nothing can take an ID from it after it has left the map
+    private void unretain(InetSocketAddress upstream) {
+        if ((count.decrementAndGet() == 0) && count.compareAndSet(0, -1)) {
+            upstreamAllocators.remove(upstream, this);
+        }
+    }
+
+    /**
+     * @return the number of IDs currently reserved
+     */
+    public int getInUseCount() {
+        return Math.max(count.get(), 0);
+    }
+
+    /**
+     * @return true if the ID is currently reserved
+     */
+    public boolean isInUse(int id) {
+        id &= 0xFFFF;
+        return (inUse.get(id >>> 6) & (1L << (id & 63))) != 0;
+    }
+}
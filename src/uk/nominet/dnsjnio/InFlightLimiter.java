@@ -0,0 +1,423 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of queries in flight at once.
+ * Each NonblockingResolver has its own limiter, and there may also be a
+ * limiter for each upstream server, shared by all the resolvers which
+ * query that server (see forUpstream()). A query is only sent once both
+ * have admitted it.
+ * When the limit is reached, a new query is handled according to the
+ * limiter's Policy : the caller can be blocked until a query completes,
+ * the query can be queued (first in, first out) until then, or it can be
+ * rejected with a QueryRejectedException.
+ * Queries are timed from when they are sent, not from when they were queued.
+ * By default a limiter has no limit. The limit can also be set by an
+ * AdaptiveLimit, from the round trip times and timeouts of the queries.
+ */
+public class InFlightLimiter {
+    /** What to do with a query when the limit has been reached */
+    public enum Policy {
+        /** Block the calling thread until the query can be sent */
+        BLOCK,
+        /** Queue the query, to be sent when another query completes */
+        QUEUE,
+        /** Fail the query with a QueryRejectedException */
+        REJECT
+    }
+
+    /**
+     * A query waiting to be admitted
+     */
+    interface Task {
+        /**
+         * Called once the task has been admitted
+         * @param queued true if the task was queued, and is being started by
+         *            the completion of another query (on that query's thread)
+         */
+        void admitted(boolean queued);
+
+        /**
+         * Called if admitted() threw. The limiter has already taken back
+         * the task's slot.
+         * @param e the exception admitted() threw
+         */
+        void failed(RuntimeException e);
+    }
+
+    private static final Map upstreamLimiters = new HashMap();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFree = lock.newCondition();
+    private final LinkedList waiting = new LinkedList();
+    private int maxInFlight = 0;
+    private int maxQueued = Integer.MAX_VALUE;
+    private Policy policy = Policy.QUEUE;
+    private int inFlight = 0;
+    private int blockedThreads = 0;
+    private int peakQueueDepth = 0;
+    private long queuedCount = 0;
+    private long rejectedCount = 0;
+    private AdaptiveLimit adaptiveLimit = null;
+
+    /**
+     * Get the limiter shared by all the resolvers which query the given
+     * server, creating it (with no limit) if necessary.
+     * @param upstream the server's address and port
+     * @return the limiter for that server
+     */
+    public static InFlightLimiter forUpstream(InetSocketAddress upstream) {
+        synchronized (upstreamLimiters) {
+            InFlightLimiter limiter = (InFlightLimiter)upstreamLimiters.get(upstream);
+            if (limiter == null) {
+                limiter = new InFlightLimiter();
+                upstreamLimiters.put(upstream, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * @return the limiter for the given server, or null if none has been created
+     */
+    static InFlightLimiter getUpstream(InetSocketAddress upstream) {
+        synchronized (upstreamLimiters) {
+            return (InFlightLimiter)upstreamLimiters.get(upstream);
+        }
+    }
+
+    /**
+     * Set the most queries which may be in flight at once. 
+     * @param maxInFlight the limit, or 0 for no limit
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight must not be negative");
+        }
+        lock.lock();
+        try {
+            this.maxInFlight = maxInFlight;
+        } finally {
+            lock.unlock();
+        }
+        startWaiting();
+    }
+
+    /**
+     * Let the limit be set by an AdaptiveLimit, instead of by 
+     * setMaxInFlight(), from the round trip times and timeouts of the
+     * queries as they complete.
+     * @param adaptiveLimit the adaptive limit, or null to keep the limit
+     *            where it is from now on
+     */
+    public void setAdaptiveLimit(AdaptiveLimit adaptiveLimit) {
+        lock.lock();
+        try {
+            this.adaptiveLimit = adaptiveLimit;
+            if (adaptiveLimit != null) {
+                maxInFlight = adaptiveLimit.getLimit();
+            }
+        } finally {
+            lock.unlock();
+        }
+        startWaiting();
+    }
+
+    public AdaptiveLimit getAdaptiveLimit() {
+        lock.lock();
+        try {
+            return adaptiveLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxInFlight() {
+        lock.lock();
+        try {
+            return maxInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the most queries which may be queued. Once the queue is full,
+     * further queries are rejected.
+     */
+    public void setMaxQueued(int maxQueued) {
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued must not be negative");
+        }
+        lock.lock();
+        try {
+            this.maxQueued = maxQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueued() {
+        lock.lock();
+        try {
+            return maxQueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set what happens to a query when the limit has been reached.
+     * A select thread is never blocked - a query sent from one (e.g. by a
+     * ResolverListener run by the direct executor) is queued instead, as is
+     * a query sent as part of a batch.
+     */
+    public void setPolicy(Policy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("No policy");
+        }
+        lock.lock();
+        try {
+            this.policy = policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Policy getPolicy() {
+        lock.lock();
+        try {
+            return policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queries currently in flight
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queries currently queued
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the most queries which have been queued at once
+     */
+    public int getPeakQueueDepth() {
+        lock.lock();
+        try {
+            return peakQueueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of threads currently blocked waiting to send
+     */
+    public int getBlockedThreads() {
+        lock.lock();
+        try {
+            return blockedThreads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queries which have had to be queued
+     */
+    public long getQueuedCount() {
+        lock.lock();
+        try {
+            return queuedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queries which have been rejected
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejectedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A select thread must never wait for a query to complete, and nor must
+    // a thread with a batch open - the batch may hold the very queries it
+    // would be waiting for
+    private static boolean canBlock() {
+        return !DnsController.isSelectThread() && !SelectLoop.inBatch();
+    }
+
+    // Queued queries always go first
+    private boolean hasRoom() {
+        return waiting.isEmpty() && ((maxInFlight == 0) || (inFlight < maxInFlight));
+    }
+
+    /**
+     * Ask for a query to be admitted. If there is room, the task is admitted
+     * straight away, on the calling thread. Otherwise the policy decides.
+     * Every admitted task must be followed by a call to release().
+     * @param task the query to admit
+     * @param mayBlock false if the calling thread must not be blocked
+     * @return false if the query was rejected
+     */
+    boolean submit(Task task, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (!hasRoom()) {
+                if ((policy == Policy.BLOCK) && mayBlock && canBlock()) {
+                    blockedThreads++;
+                    try {
+                        while (!hasRoom()) {
+                            slotFree.await();
+                        }
+                        if ((maxInFlight == 0) || (inFlight + 1 < maxInFlight)) {
+                            // The limit may have grown by more than one
+                            slotFree.signal();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejectedCount++;
+                        return false;
+                    } finally {
+                        blockedThreads--;
+                    }
+                } else if ((policy != Policy.REJECT) && (waiting.size() < maxQueued)) {
+                    waiting.addLast(task);
+                    queuedCount++;
+                    if (waiting.size() > peakQueueDepth) {
+                        peakQueueDepth = waiting.size();
+                    }
+                    return true;
+                } else {
+                    rejectedCount++;
+                    return false;
+                }
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        start(task, false);
+        return true;
+    }
+
+    /**
+     * Called when an admitted query has completed, without a round trip
+     * time for the adaptive limit (e.g. because it failed)
+     */
+    void release() {
+        release(-1, false);
+    }
+
+    /**
+     * Called when an admitted query has completed. The slot is passed on to
+     * the oldest queued query, if there is one (which is then started on
+     * the calling thread), or else to a blocked thread.
+     * @param rtt the query's round trip time in milliseconds, or -1 if there
+     *            is none
+     * @param dropped true if the query timed out
+     */
+    void release(long rtt, boolean dropped) {
+        lock.lock();
+        try {
+            if (adaptiveLimit != null) {
+                maxInFlight = adaptiveLimit.update(rtt, dropped, inFlight);
+            }
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+        startWaiting();
+    }
+
+    /**
+     * Start as many of the queued queries as the limit now allows
+     */
+    private void startWaiting() {
+        Task next;
+        do {
+            lock.lock();
+            try {
+                next = pollWaiting();
+                if ((next == null) && hasRoom()) {
+                    slotFree.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (next != null) {
+                start(next, true);
+            }
+        } while (next != null);
+    }
+
+    /**
+     * Start an admitted task. If it fails, its slot is released (which may
+     * start the next queued task) and the task is told, so that one bad
+     * task can neither leak a slot nor strand the queue behind it.
+     */
+    private void start(Task task, boolean queued) {
+        try {
+            task.admitted(queued);
+        } catch (RuntimeException e) {
+            release();
+            task.failed(e);
+        }
+    }
+
+    // Take the oldest queued query, if there is room for it
+    private Task pollWaiting() {
+        if (waiting.isEmpty() || ((maxInFlight != 0) && (inFlight >= maxInFlight))) {
+            return null;
+        }
+        inFlight++;
+        return (Task)waiting.removeFirst();
+    }
+}
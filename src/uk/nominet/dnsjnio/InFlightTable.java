@@ -0,0 +1,82 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of the queries currently in flight on a connection, indexed
+ * directly by the 16-bit DNS header ID.
+ * There is one slot for each possible ID, so lookups need no hashing,
+ * no boxing and no locking. Slots are updated with compare-and-set, so
+ * client threads and the select thread can all use the table at once.
+ */
+public class InFlightTable {
+    public static final int SIZE = 65536;
+
+    private final AtomicReferenceArray slots = new AtomicReferenceArray(SIZE);
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    /**
+     * @return the QueryData in flight with this header ID, or null if none
+     */
+    public QueryData get(int id) {
+        return (QueryData)slots.get(id & 0xFFFF);
+    }
+
+    /**
+     * @return true if there is no query in flight with this header ID
+     */
+    public boolean isFree(int id) {
+        return slots.get(id & 0xFFFF) == null;
+    }
+
+    /**
+     * Store the QueryData against its header ID, replacing any query
+     * already in flight with that ID.
+     */
+    public void put(int id, QueryData qData) {
+        if (slots.getAndSet(id & 0xFFFF, qData) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove the QueryData from the table. Nothing happens if the slot
+     * now holds a different query.
+     * @return true if the QueryData was removed
+     */
+    public boolean remove(int id, QueryData qData) {
+        if (slots.compareAndSet(id & 0xFFFF, qData, null)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of queries in flight
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.ResolverListener;
+
+/**
+ * A ResolverListener which is called straight from the transaction (on the
+ * select thread), rather than on the callback executor. It must return
+ * quickly, and must never block.
+ */
+interface InlineListener extends ResolverListener {
+}
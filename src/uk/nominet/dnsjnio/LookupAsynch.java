@@ -59,10 +59,8 @@ public final class LookupAsynch {
             while (true) {
                 LookupAsynch pendingLookup;
                 Response response;
-                synchronized(responseQueue) {
-                    response = responseQueue.getItem();
-                    pendingLookup = pendingLookups.remove(response.getId());
-                }
+                response = responseQueue.getItem();
+                pendingLookup = pendingLookups.remove(response.getId());
                 if (pendingLookup != null) {
                     LookupContinuation lc = pendingLookup.processResponse(response);
                     synchronized (pendingLookup) {
@@ -139,8 +137,6 @@ public final class LookupAsynch {
 
     private static Map defaultCaches;
     
-    private static java.util.Random random = new java.util.Random();
-
     private ExtendedNonblockingResolver resolver;
 
     private Name[] searchPath;
@@ -663,10 +659,8 @@ public final class LookupAsynch {
     private Response processQuery(Message query) {
         Response r = new Response();
         try {
-			Message newQuery = (Message)(query.clone());
-            int rnd = random.nextInt(65535);
-            newQuery.getHeader().setID(rnd);
-            r.setMessage(resolver.send(newQuery));
+            // The resolver picks a fresh QID for each query it sends
+            r.setMessage(resolver.send(query));
         } catch (IOException e) {
             r.setException(true);
             r.setException(e);
@@ -774,10 +768,8 @@ public final class LookupAsynch {
         currentLookupContinuation = lc;
         Integer nextId = Integer.valueOf(nextId());
         pendingLookups.put(nextId, this);
-        Message toSend = (Message)(lc.getQuery().clone());
-        int rnd = random.nextInt(65535);
-        toSend.getHeader().setID(rnd);
-        resolver.sendAsync(toSend, nextId, responseQueue);
+        // The resolver picks a fresh QID for each query it sends
+        resolver.sendAsync(lc.getQuery(), nextId, responseQueue);
     }
 
     
@@ -22,7 +22,10 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * A nonblocking implementation of Resolver. Multiple concurrent sendAsync
@@ -67,10 +70,22 @@ public class NonblockingResolver implements INonblockingResolver {
 	private static java.util.Random random = new java.util.Random();
 
 
-	private SinglePortTransactionController transactionController;
+	private SinglePortControllerGroup controllerGroup;
 
 	private boolean useSinglePort = false;
 
+	private boolean useSingleUdpPort = false;
+
+	private boolean useUdpSocketPool = false;
+
+	private boolean rawResponse = false;
+
+	private QueryTemplateCache queryTemplates = new QueryTemplateCache();
+
+	private Executor callbackExecutor = CallbackExecutors.getDefault();
+
+	private final InFlightLimiter inFlightLimiter = new InFlightLimiter();
+
 	private InetSocketAddress localAddress = new InetSocketAddress(0); // use
 																		// random
 																		// port
@@ -95,7 +110,7 @@ public class NonblockingResolver implements INonblockingResolver {
 		else
 			addr = InetAddress.getByName(hostname);
 		remoteAddress = new InetSocketAddress(addr, DEFAULT_PORT);
-		transactionController = new SinglePortTransactionController(
+		controllerGroup = new SinglePortControllerGroup(
 				remoteAddress, localAddress);
 	}
 
@@ -115,6 +130,10 @@ public class NonblockingResolver implements INonblockingResolver {
 		return remoteAddress;
 	}
 
+	SinglePortControllerGroup getControllerGroup() {
+		return controllerGroup;
+	}
+
 	/** Sets the default host (initially localhost) to query */
 	public static void setDefaultResolver(String hostname) {
 		defaultResolver = hostname;
@@ -128,7 +147,7 @@ public class NonblockingResolver implements INonblockingResolver {
 	 */
 	public void setRemoteAddress(InetSocketAddress addr) {
 		remoteAddress = addr;
-		transactionController.setRemoteAddress(remoteAddress);
+		controllerGroup.setRemoteAddress(remoteAddress);
 	}
 
 	/**
@@ -140,7 +159,7 @@ public class NonblockingResolver implements INonblockingResolver {
 	 */
 	public void setRemoteAddress(InetAddress addr) {
 		remoteAddress = new InetSocketAddress(addr, remoteAddress.getPort());
-		transactionController.setRemoteAddress(remoteAddress);
+		controllerGroup.setRemoteAddress(remoteAddress);
 	}
 
 	/**
@@ -151,7 +170,7 @@ public class NonblockingResolver implements INonblockingResolver {
 	 */
 	public void setRemotePort(int port) {
 		remoteAddress = new InetSocketAddress(remoteAddress.getAddress(), port);
-		transactionController.setRemoteAddress(remoteAddress);
+		controllerGroup.setRemoteAddress(remoteAddress);
 	}
 
 	/**
@@ -163,7 +182,7 @@ public class NonblockingResolver implements INonblockingResolver {
 	 */
 	public void setLocalAddress(InetSocketAddress addr) {
 		localAddress = addr;
-		transactionController.setLocalAddress(localAddress);
+		controllerGroup.setLocalAddress(localAddress);
 	}
 
 	/**
@@ -175,7 +194,7 @@ public class NonblockingResolver implements INonblockingResolver {
 	 */
 	public void setLocalAddress(InetAddress addr) {
 		localAddress = new InetSocketAddress(addr, 0);
-		transactionController.setLocalAddress(localAddress);
+		controllerGroup.setLocalAddress(localAddress);
 	}
 
 	/**
@@ -211,7 +230,12 @@ public class NonblockingResolver implements INonblockingResolver {
 
 	/**
 	 * Set single port mode on or off
-     * THIS ONLY WORKS FOR TCP-BASED QUERIES - UDP QUERIES WILL ALWAYS USE A RANDOM PORT
+     * THIS ONLY WORKS FOR TCP-BASED QUERIES - USE setSingleUdpPort() FOR UDP QUERIES
+	 * In single port mode, TCP queries (including retries of truncated UDP
+	 * responses) are pipelined over persistent connections to the server,
+	 * which are closed once they have been idle for a while. If no local
+	 * port has been set, more than one connection may be opened - see
+	 * setMaxTcpConnections().
 	 * 
 	 * @param useSamePort
 	 *            should same port be used for all the queries?
@@ -222,7 +246,7 @@ public class NonblockingResolver implements INonblockingResolver {
 
 	/**
 	 * In single port mode?
-     * THIS ONLY WORKS FOR TCP-BASED QUERIES - UDP QUERIES WILL ALWAYS USE A RANDOM PORT
+     * THIS ONLY WORKS FOR TCP-BASED QUERIES - USE isSingleUdpPort() FOR UDP QUERIES
 	 * 
 	 * @return true if a single port should be used for all queries
 	 */
@@ -230,17 +254,206 @@ public class NonblockingResolver implements INonblockingResolver {
 		return useSinglePort;
 	}
 
+	/**
+	 * Set single port mode on or off for UDP. If on, the resolver keeps one
+	 * UDP socket open (on the local address, or a random port if no local
+	 * port has been set), and multiplexes all the UDP queries over it,
+	 * matching responses by header ID. If a query is sent with a header ID
+	 * which is already in use on that socket, it gets a socket of its own.
+	 * 
+	 * @param useSamePort
+	 *            should same port be used for all the UDP queries?
+	 */
+	public void setSingleUdpPort(boolean useSamePort) {
+		this.useSingleUdpPort = useSamePort;
+	}
+
+	/**
+	 * In single port mode for UDP?
+	 * 
+	 * @return true if a single port should be used for all UDP queries
+	 */
+	public boolean isSingleUdpPort() {
+		return useSingleUdpPort;
+	}
+
+	/**
+	 * Set raw response mode on or off. If on, the Responses put on a
+	 * ResponseQueue carry the wire data of the response, which is only
+	 * decoded when Response.getMessage() is first called. Responses to
+	 * queries sent with a ResolverListener are always decoded.
+	 * 
+	 * @param rawResponse
+	 *            should responses be left undecoded?
+	 */
+	public void setRawResponse(boolean rawResponse) {
+		this.rawResponse = rawResponse;
+	}
+
+	/**
+	 * In raw response mode?
+	 * 
+	 * @return true if responses are left undecoded until asked for
+	 */
+	public boolean isRawResponse() {
+		return rawResponse;
+	}
+
+	/**
+	 * Set the Executor which calls back the ResolverListeners. By default,
+	 * this is a shared, bounded pool of daemon threads. CallbackExecutors
+	 * also has a virtual thread per callback executor, and a direct executor
+	 * for listeners which can be called on the select thread.
+	 * 
+	 * @param executor
+	 *            the executor to run the callbacks
+	 * @see CallbackExecutors
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("No callback executor");
+		}
+		this.callbackExecutor = executor;
+		controllerGroup.setCallbackExecutor(executor);
+	}
+
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	/**
+	 * Get the limiter for the number of this resolver's queries in flight at
+	 * once, which also shows how many queries are queued. By default there
+	 * is no limit. The limit for all the resolvers which query the same
+	 * server is set with InFlightLimiter.forUpstream(), and applies as well.
+	 * 
+	 * @return this resolver's limiter
+	 */
+	public InFlightLimiter getInFlightLimiter() {
+		return inFlightLimiter;
+	}
+
+	/**
+	 * Let the number of queries in flight be set by an AdaptiveLimit, which
+	 * finds the most the server can take from the round trip times and
+	 * timeouts, rather than by a fixed limit.
+	 * 
+	 * @param adaptive
+	 *            true for an adaptive limit (with the default settings),
+	 *            false to go back to no limit
+	 */
+	public void setAdaptiveLimit(boolean adaptive) {
+		if (adaptive) {
+			inFlightLimiter.setAdaptiveLimit(new AdaptiveLimit());
+		} else {
+			inFlightLimiter.setAdaptiveLimit(null);
+			inFlightLimiter.setMaxInFlight(0);
+		}
+	}
+
+	/**
+	 * Set the number of encoded queries to keep, so that queries for the
+	 * same question can be sent again without being encoded again.
+	 * 
+	 * @param size
+	 *            the most queries to keep - 0 turns the cache off
+	 */
+	public void setQueryTemplateCacheSize(int size) {
+		queryTemplates.setMaxSize(size);
+	}
+
+	public int getQueryTemplateCacheSize() {
+		return queryTemplates.getMaxSize();
+	}
+
+	/**
+	 * Set the maximum number of persistent TCP connections to open to the
+	 * server, per single port shard. Only applies if no local port has been
+	 * set - a fixed local port can only carry one connection.
+	 * 
+	 * @param max
+	 *            the maximum number of connections (default 1)
+	 */
+	public void setMaxTcpConnections(int max) {
+		controllerGroup.setMaxTcpConnections(max);
+	}
+
+	/**
+	 * Set the maximum number of queries in flight on each persistent TCP
+	 * connection. A new connection is opened (up to the maximum) when all the
+	 * connections are full - after that, queries wait for a free slot.
+	 * 
+	 * @param max
+	 *            the maximum number of queries per connection
+	 */
+	public void setMaxTcpQueriesPerConnection(int max) {
+		controllerGroup.setMaxTcpQueriesPerConnection(max);
+	}
+
+	/**
+	 * Set how long a persistent TCP connection is kept open with no queries
+	 * in flight.
+	 * 
+	 * @param millis
+	 *            the idle timeout in milliseconds
+	 */
+	public void setTcpIdleTimeout(int millis) {
+		controllerGroup.setTcpIdleTimeout(millis);
+	}
+
+	/**
+	 * Set the maximum number of local ports (shards) which single port mode
+	 * may use. Each shard has its own 16-bit ID space, so this caps the
+	 * number of single port queries in flight at 65536 per shard. Only the
+	 * first shard is opened up front, on the local port; the others are
+	 * opened on random ports when the first ones are busy.
+	 * 
+	 * @param maxShards
+	 *            the maximum number of local ports to use (at least 1)
+	 */
+	public void setMaxSinglePortShards(int maxShards) {
+		controllerGroup.setMaxShards(maxShards);
+	}
+
+	/**
+	 * @return the maximum number of local ports which single port mode may use
+	 */
+	public int getMaxSinglePortShards() {
+		return controllerGroup.getMaxShards();
+	}
+
+	/**
+	 * Send UDP queries over a shared pool of long-lived sockets (one pool per
+	 * local address), rather than opening a new socket on a random port for
+	 * each query. Responses are matched by server address, port and header ID.
+	 * The pool's sockets are moved to new random ports on a regular schedule -
+	 * see UDPSocketPool. Single port mode takes precedence over this setting.
+	 * 
+	 * @param usePool
+	 *            should UDP queries share the pool's sockets?
+	 */
+	public void setUdpSocketPool(boolean usePool) {
+		this.useUdpSocketPool = usePool;
+	}
+
+	/**
+	 * @return true if UDP queries are sent over the shared socket pool
+	 */
+	public boolean isUdpSocketPool() {
+		return useUdpSocketPool;
+	}
+
 	/**
 	 * Sets the local port to bind to when sending messages. A random port will
 	 * be used if useSinglePort is false.
-     * THIS ONLY WORKS FOR TCP-BASED QUERIES - UDP QUERIES WILL ALWAYS USE A RANDOM PORT
+     * UDP QUERIES ONLY USE THIS PORT IN SINGLE UDP PORT MODE
 	 * 
 	 * @param port
 	 *            The local port to send messages from.
 	 */
 	public void setLocalTcpPort(int port) {
 		localAddress = new InetSocketAddress(localAddress.getHostName(), port);
-		transactionController.setLocalAddress(localAddress);
+		controllerGroup.setLocalAddress(localAddress);
 	}	
 
 	public void setEDNS(int level, int payloadSize, int flags, List options) {
@@ -319,25 +532,7 @@ public class NonblockingResolver implements INonblockingResolver {
 	 *             An error occurred while sending or receiving.
 	 */
 	public Message send(Message query) throws IOException {
-
-		ResponseQueue queue = new ResponseQueue();
-		Object id = sendAsync(query, queue);
-		Response response = queue.getItem();
-		if (response.getId() != id) {
-			throw new IllegalStateException("Wrong id (" + response.getId()
-					+ ", should be " + id + ") returned from sendAsync()!");
-		}
-		if (response.isException()) {
-			if (response.getException() instanceof SocketTimeoutException) {
-				throw new SocketTimeoutException();
-			} else if (response.getException() instanceof IOException) {
-				throw (IOException) (response.getException());
-			} else {
-				throw new IllegalStateException("Unexpected exception!\r\n"
-						+ response.getException().toString());
-			}
-		}
-		return response.getMessage();
+		return sendFuture(query).getResponse();
 	}
 
 	/**
@@ -375,7 +570,33 @@ public class NonblockingResolver implements INonblockingResolver {
 	public void sendAsync(Message message, Object id,
 			ResolverListener resolverListener) {
 		sendAsync(message, id, timeoutValue, useTCP, null, false,
-				resolverListener);
+				resolverListener, false, false);
+	}
+
+	/**
+	 * Asynchronously sends a message to a single nameserver. The future is
+	 * completed directly by the transaction, on a select thread - so any
+	 * dependent stage which does real work should be run with one of the
+	 * *Async methods.
+	 * 
+	 * @param query
+	 *            The query to send
+	 * @return the future response, completed exceptionally with the
+	 *         IOException if the query fails
+	 */
+	public CompletableFuture<Message> sendAsync(final Message query) {
+		return sendFuture(query);
+	}
+
+	private ResponseFuture sendFuture(final Message query) {
+		final Object id;
+		synchronized (this) {
+			id = new Integer(uniqueID++);
+		}
+		ResponseFuture future = new ResponseFuture();
+		sendAsync(query, id, timeoutValue, useTCP, null, false, future,
+				false, false);
+		return future;
 	}
 
 	/**
@@ -399,6 +620,54 @@ public class NonblockingResolver implements INonblockingResolver {
 		return id;
 	}
 
+	/**
+	 * Asynchronously sends a batch of queries, as sendAsync(Message,
+	 * ResponseQueue) does for one. The queries are all prepared on the
+	 * calling thread, and then handed to each select thread as a single
+	 * task, so the select threads are woken once for the whole batch.
+	 * 
+	 * @param queries
+	 *            The queries to send
+	 * @param responseQueue
+	 *            the queue for the responses
+	 * @return the identifiers of the queries, in the order of the queries
+	 */
+	public List<Object> sendBatch(final List<Message> queries,
+			final ResponseQueue responseQueue) {
+		List<Object> ids = new ArrayList<Object>(queries.size());
+		SelectLoop.beginBatch();
+		try {
+			for (int i = 0; i < queries.size(); i++) {
+				ids.add(sendAsync(queries.get(i), responseQueue));
+			}
+		} finally {
+			SelectLoop.endBatch();
+		}
+		return ids;
+	}
+
+	/**
+	 * Asynchronously sends a batch of queries, as sendAsync(Message) does
+	 * for one, handing the whole batch to the select threads at once.
+	 * 
+	 * @param queries
+	 *            The queries to send
+	 * @return the future responses, in the order of the queries
+	 */
+	public List<CompletableFuture<Message>> sendBatch(final List<Message> queries) {
+		List<CompletableFuture<Message>> futures = new ArrayList<CompletableFuture<Message>>(
+				queries.size());
+		SelectLoop.beginBatch();
+		try {
+			for (int i = 0; i < queries.size(); i++) {
+				futures.add(sendFuture(queries.get(i)));
+			}
+		} finally {
+			SelectLoop.endBatch();
+		}
+		return futures;
+	}
+
 	/**
 	 * Add the query to the queue for the NonblockingResolverEngine
 	 * 
@@ -417,13 +686,103 @@ public class NonblockingResolver implements INonblockingResolver {
 	public void sendAsync(final Message inQuery, Object id, int inQueryTimeout,
 			boolean queryUseTCP, final ResponseQueue responseQueue) {
 		sendAsync(inQuery, id, inQueryTimeout, queryUseTCP, responseQueue,
-				true, null);
+				true, null, false, false);
+	}
+
+	/**
+	 * Send a query with a fresh header ID, instead of the one set in the
+	 * query. For the resolver layers built on this one, which match
+	 * responses by id object rather than by QID. The ID comes from an
+	 * IdAllocator - the single port shard's in single port mode, or else
+	 * the one shared by every resolver for the upstream - so it never
+	 * collides with a query in flight.
+	 */
+	void sendAsyncWithNewId(final Message inQuery, Object id,
+			int inQueryTimeout, boolean queryUseTCP,
+			final ResponseQueue responseQueue) {
+		sendAsync(inQuery, id, inQueryTimeout, queryUseTCP, responseQueue,
+				true, null, true, false);
+	}
+
+	/**
+	 * As sendAsyncWithNewId(Message, Object, int, boolean, ResponseQueue),
+	 * but calling a listener back instead.
+	 */
+	void sendAsyncWithNewId(final Message inQuery, Object id,
+			int inQueryTimeout, boolean queryUseTCP,
+			final ResolverListener listener) {
+		sendAsync(inQuery, id, inQueryTimeout, queryUseTCP, null, false,
+				listener, true, false);
+	}
+
+	/**
+	 * Asynchronously sends a pre-encoded query. The response is returned
+	 * undecoded, as if raw response mode were on.
+	 * 
+	 * @param query
+	 *            The wire format of the query to send
+	 * @param responseQueue
+	 *            the queue for the responses
+	 * @return An identifier, which is also a data member of the Response
+	 * @see #sendAsyncRaw(byte[], Object, ResponseQueue)
+	 */
+	public Object sendAsyncRaw(final byte[] query,
+			final ResponseQueue responseQueue) {
+		final Object id;
+		synchronized (this) {
+			id = new Integer(uniqueID++);
+		}
+		sendAsyncRaw(query, id, responseQueue);
+		return id;
+	}
+
+	/**
+	 * Asynchronously sends a pre-encoded query. The query is sent exactly as
+	 * it is, with its own header ID and no EDNS added, so it is never
+	 * decoded - unless a TSIG key has been set, in which case it has to be
+	 * decoded to be signed. The response is returned undecoded, as if raw
+	 * response mode were on. The query array is not copied, so must not be
+	 * changed until the response has come back.
+	 * 
+	 * @param query
+	 *            The wire format of the query to send
+	 * @param id
+	 *            The object to be used as the id in the callback
+	 * @param responseQueue
+	 *            The queue for the responses
+	 * @throws IllegalArgumentException
+	 *             if the query is too short to hold a DNS header, or can't
+	 *             be decoded to be signed
+	 */
+	public void sendAsyncRaw(final byte[] query, Object id,
+			final ResponseQueue responseQueue) {
+		if (!WireHeader.hasHeader(query)) {
+			throw new IllegalArgumentException("Query too short");
+		}
+		if (tsig != null) {
+			Message message;
+			try {
+				message = parseMessage(query);
+			} catch (WireParseException e) {
+				throw new IllegalArgumentException("Can't decode query to sign it: " + e.getMessage());
+			}
+			sendAsync(message, id, timeoutValue, useTCP, responseQueue,
+					true, null, false, true);
+			return;
+		}
+		int udpSize = WireHeader.getUdpPayloadSize(query);
+		if (udpSize == 0) {
+			udpSize = DEFAULT_UDPSIZE;
+		}
+		boolean tcp = useTCP || (query.length > udpSize);
+		admit(null, query, id, timeoutValue, tcp, udpSize, null, null,
+				responseQueue, null, true);
 	}
 
 	private void sendAsync(final Message inQuery, Object id,
 			int inQueryTimeout, boolean queryUseTCP,
 			final ResponseQueue responseQueue, boolean useResponseQueue,
-			ResolverListener listener) {
+			ResolverListener listener, boolean newId, boolean raw) {
 		if (!useResponseQueue && (listener == null)) {
 			throw new IllegalArgumentException(
 					"No ResolverListener supplied for callback when useResponsequeue = true!");
@@ -442,15 +801,61 @@ public class NonblockingResolver implements INonblockingResolver {
 		}
 
 		int queryTimeout = inQueryTimeout;
-		Message query = (Message) inQuery.clone();
-		applyEDNS(query);
-		if (tsig != null)
-			tsig.apply(query, null);
-
-		byte[] out = query.toWire(Message.MAXLENGTH);
-		int udpSize = maxUDPSize(query);
+		// Simple queries are encoded once, and then only have their header ID
+		// filled in. Anything else is cloned and encoded each time.
+		Message query = null;
+		byte[] out = null;
+		int udpSize;
+		Object templateKey = null;
+		if (tsig == null) {
+			templateKey = QueryTemplateCache.getKey(inQuery, queryOPT);
+		}
+		QueryTemplateCache.Template template = null;
+		if (templateKey != null) {
+			template = queryTemplates.get(templateKey);
+		}
+		if (template != null) {
+			out = template.newQuery(inQuery.getHeader().getID());
+			udpSize = template.getUdpSize();
+		} else {
+			query = (Message) inQuery.clone();
+			applyEDNS(query);
+			udpSize = maxUDPSize(query);
+		}
+		// The single port controller holding the query's header ID, if any
+		SinglePortTransactionController controller = null;
+		// The upstream whose allocator holds the query's header ID instead, if any
+		InetSocketAddress idUpstream = null;
+		if (newId) {
+			if (useSinglePort || useSingleUdpPort) {
+				controller = (query != null) ? controllerGroup
+						.allocateHeaderId(query) : controllerGroup
+						.allocateHeaderId(out);
+			}
+			if (controller == null) {
+				int headerId = IdAllocator.allocateUpstream(remoteAddress);
+				if (headerId >= 0) {
+					idUpstream = remoteAddress;
+				} else {
+					// Every ID is in flight - take the chance of a collision
+					headerId = random.nextInt(IdAllocator.NUM_IDS);
+				}
+				if (query != null) {
+					query.getHeader().setID(headerId);
+				} else {
+					WireHeader.setId(out, headerId);
+				}
+			}
+		}
+		if (query != null) {
+			if (tsig != null)
+				tsig.apply(query, null);
+			out = query.toWire(Message.MAXLENGTH);
+			if (templateKey != null) {
+				queryTemplates.put(templateKey, out, udpSize);
+			}
+		}
 		boolean tcp = false;
-		long endTime = System.currentTimeMillis() + queryTimeout;
 
 		if (queryUseTCP || out.length > udpSize) {
 			tcp = true;
@@ -464,26 +869,200 @@ public class NonblockingResolver implements INonblockingResolver {
 		// If useResponseQueue, then the Transaction should use the standard
 		// behaviour of inserting
 		// the response in to the client-supplied ResponseQueue.
+		admit(query, out, id, queryTimeout, tcp, udpSize, controller,
+				idUpstream, responseQueue, listener, useResponseQueue
+						&& (raw || rawResponse));
+	}
+
+	/**
+	 * Send the query once it has been admitted by the resolver's
+	 * InFlightLimiter, and by the upstream server's, if it has one.
+	 */
+	private void admit(Message query, byte[] out, Object id, int timeout,
+			boolean tcp, int udpSize, SinglePortTransactionController controller,
+			InetSocketAddress idUpstream, ResponseQueue responseQueue,
+			ResolverListener listener, boolean raw) {
+		AdmittedQuery admitted = new AdmittedQuery(query, out, id, timeout,
+				tcp, udpSize, controller, idUpstream, responseQueue,
+				listener, raw);
+		if (!inFlightLimiter.submit(admitted, true)) {
+			admitted.reject();
+		}
+	}
+
+	/**
+	 * A query waiting to be admitted by the limiters. The timeout only
+	 * starts once the query is sent.
+	 */
+	private class AdmittedQuery implements InFlightLimiter.Task,
+			QueryCompletionListener {
+		private final Message query;
+		private final byte[] out;
+		private final Object id;
+		private final int timeout;
+		private final boolean tcp;
+		private final int udpSize;
+		private final SinglePortTransactionController controller;
+		// The upstream whose allocator holds the header ID until the query
+		// completes, if any
+		private InetSocketAddress idUpstream;
+		private final ResponseQueue responseQueue;
+		private final ResolverListener listener;
+		private final boolean raw;
+		// The upstream server's limiter, if it has one
+		private final InFlightLimiter upstreamLimiter;
+		private boolean admittedByResolver = false;
+		private boolean admittedByUpstream = false;
+		private long sentAt;
+
+		AdmittedQuery(Message query, byte[] out, Object id, int timeout,
+				boolean tcp, int udpSize,
+				SinglePortTransactionController controller,
+				InetSocketAddress idUpstream, ResponseQueue responseQueue,
+				ResolverListener listener, boolean raw) {
+			this.query = query;
+			this.out = out;
+			this.id = id;
+			this.timeout = timeout;
+			this.tcp = tcp;
+			this.udpSize = udpSize;
+			this.controller = controller;
+			this.idUpstream = idUpstream;
+			this.responseQueue = responseQueue;
+			this.listener = listener;
+			this.raw = raw;
+			this.upstreamLimiter = InFlightLimiter.getUpstream(remoteAddress);
+		}
+
+		public void admitted(boolean queued) {
+			if ((upstreamLimiter != null) && !admittedByResolver) {
+				// Now wait for the upstream's limiter
+				admittedByResolver = true;
+				if (!upstreamLimiter.submit(this, !queued)) {
+					inFlightLimiter.release();
+					reject();
+				}
+				return;
+			}
+			admittedByUpstream = (upstreamLimiter != null);
+			sentAt = System.currentTimeMillis();
+			sendQuery(query, out, id, sentAt + timeout, tcp, udpSize,
+					controller, responseQueue, listener, raw, this);
+		}
+
+		public void queryCompleted(Exception e) {
+			// Only an answer gives a round trip time, and only a timeout
+			// counts as loss
+			boolean dropped = e instanceof SocketTimeoutException;
+			long rtt = (e == null) ? System.currentTimeMillis() - sentAt : -1;
+			releaseUpstreamId();
+			if (upstreamLimiter != null) {
+				upstreamLimiter.release(rtt, dropped);
+			}
+			inFlightLimiter.release(rtt, dropped);
+		}
+
+		private int getHeaderId() {
+			return (query != null) ? query.getHeader().getID() : WireHeader
+					.getId(out);
+		}
 
+		private synchronized void releaseUpstreamId() {
+			if (idUpstream != null) {
+				IdAllocator.releaseUpstream(idUpstream, getHeaderId());
+				idUpstream = null;
+			}
+		}
+
+		/**
+		 * The query could not be sent. The limiter which was starting it
+		 * has released its slot - any other slot is released here.
+		 */
+		public void failed(RuntimeException e) {
+			if (admittedByUpstream) {
+				inFlightLimiter.release();
+			}
+			IOException ioe = new IOException("Query could not be sent : " + e);
+			ioe.initCause(e);
+			fail(ioe);
+		}
+
+		/**
+		 * Return a QueryRejectedException to the client
+		 */
+		void reject() {
+			fail(new QueryRejectedException("Too many queries in flight to "
+					+ remoteAddress));
+		}
+
+		private void fail(Exception e) {
+			if (controller != null) {
+				controller.releaseHeaderId(getHeaderId());
+			}
+			releaseUpstreamId();
+			if (listener == null) {
+				Response response = new Response();
+				response.setException(e);
+				response.setException(true);
+				response.setId(id);
+				responseQueue.insert(response);
+			} else if (listener instanceof InlineListener) {
+				listener.handleException(id, e);
+			} else {
+				callbackExecutor.execute(new ResponderTask(listener, id, e));
+			}
+		}
+	}
+
+	/**
+	 * Hand the query to a single port controller or a new Transaction.
+	 * 
+	 * @param query
+	 *            the query, or null if it is only available pre-encoded
+	 * @param out
+	 *            the encoded query
+	 * @param controller
+	 *            a controller which already holds the query's header ID,
+	 *            or null
+	 * @param listener
+	 *            the listener to call back, or null to use the responseQueue
+	 * @param raw
+	 *            true to return the response's wire data undecoded
+	 * @param completionListener
+	 *            told when the query completes
+	 */
+	private void sendQuery(Message query, byte[] out, Object id, long endTime,
+			boolean tcp, int udpSize, SinglePortTransactionController controller,
+			ResponseQueue responseQueue, ResolverListener listener, boolean raw,
+			QueryCompletionListener completionListener) {
+		int headerId = (query != null) ? query.getHeader().getID() : WireHeader.getId(out);
 		// Use SinglePortTransactionController if possible, otherwise get new
 		// Transaction.
-		if (useSinglePort && tcp
-				&& transactionController.headerIdNotInUse(query.getHeader()
-						.getID())) {
+		boolean singlePort = (useSinglePort && tcp) || (useSingleUdpPort && !tcp);
+		if (singlePort && (controller == null)) {
+			controller = controllerGroup.acquireHeaderId(headerId);
+		} else if (!singlePort && (controller != null)) {
+			controller.releaseHeaderId(headerId);
+			controller = null;
+		}
+		if (controller != null) {
 			QueryData qData = new QueryData();
 			qData.setTcp(tcp);
 			qData.setIgnoreTruncation(ignoreTruncation);
 			qData.setTsig(tsig);
 			qData.setQuery(query);
+			qData.setQueryWire(out);
+			qData.setRawResponse(raw);
+			qData.setCompletionListener(completionListener);
 			if (!tcp) {
 				qData.setUdpSize(udpSize);
 			}
-			if (useResponseQueue) {
-				transactionController.sendQuery(qData, id, responseQueue,
+			if (listener == null) {
+				controller.sendQuery(qData, id, responseQueue,
 						endTime);
 			} else {
 				// Start up the Transaction with a ResolverListener
-				transactionController.sendQuery(qData, id, listener, endTime);
+				controller.sendQuery(qData, id, listener, endTime);
 			}
 		} else {
 			// Pick a random port here - don't leave it to the OS!
@@ -491,14 +1070,25 @@ public class NonblockingResolver implements INonblockingResolver {
 			
 			Transaction transaction = new Transaction(remoteAddress, localAddr,
 					tsig, tcp, ignoreTruncation);
+			transaction.setRawResponse(raw);
+			transaction.setCompletionListener(completionListener);
+			transaction.setCallbackExecutor(callbackExecutor);
 			if (!tcp) {
 				transaction.setUdpSize(udpSize);
+				if (useSinglePort) {
+					// Retry truncated responses over the persistent connections
+					transaction.setTcpControllers(controllerGroup);
+				}
+				if (useUdpSocketPool) {
+					transaction.setUdpSocketPool(UDPSocketPool.getPool(localAddress.getAddress()));
+				}
 			}
-			if (useResponseQueue) {
-				transaction.sendQuery(query, id, responseQueue, endTime);
-			} else {
+			transaction.setQueryWire(out);
+			if (listener != null) {
 				// Start up the Transaction with a ResolverListener
 				transaction.sendQuery(query, id, listener, endTime);
+			} else {
+				transaction.sendQuery(query, id, responseQueue, endTime);
 			}
 		}
 	}
@@ -564,22 +1154,9 @@ public class NonblockingResolver implements INonblockingResolver {
 	 * @return true if the packet is complete
 	 */
 	public static boolean isDataComplete(byte[] in) {
-		// Match up the returned qData with the QueryDataList
-		// Make sure that the header ID is correct for the header in qData
-		// If it matches qData, that's great.
-		// If it doesn't, then we need to find the queryData which *does* match
-		// it.
-		// We then close that connection.
-		try {
-			if (in.length < Header.LENGTH) {
-				return false;
-			}
-			Message message = parseMessage(in);
-			int messLen = message.numBytes();
-			boolean ready = (messLen == in.length);
-			return (ready);
-		} catch (IOException e) {
-			return false;
-		}
+		// The packet is always a whole message - a UDP datagram, or a TCP
+		// message split off by its length prefix. So just check there's a
+		// header, and leave the one full parse to the listener.
+		return (in != null) && (in.length >= Header.LENGTH);
 	}
 }
@@ -0,0 +1,285 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * An unconnected UDP socket, owned by a UDPSocketPool, which is shared by
+ * many queries (to any number of servers) at once.
+ * Each query registers the server address and DNS header ID it expects its
+ * response to come back with. Incoming datagrams are matched against these,
+ * and anything which does not match an outstanding query is dropped.
+ * All methods must be called on the select thread for this Connection's loop.
+ */
+public class PooledUDPConnection extends Connection {
+    private final UDPSocketPool pool;
+    private final Map pending = new HashMap();
+    private final LinkedList datagrams = new LinkedList();
+    private long openedTime;
+    private boolean retiring = false;
+
+    /**
+     * The address and header ID of a response we are waiting for
+     */
+    private static class Key {
+        private final SocketAddress remote;
+        private final int id;
+
+        Key(SocketAddress remote, int id) {
+            this.remote = remote;
+            this.id = id;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return (id == k.id) && remote.equals(k.remote);
+        }
+
+        public int hashCode() {
+            return remote.hashCode() * 31 + id;
+        }
+    }
+
+    /**
+     * A queued datagram, and the address to send it to
+     */
+    private static class Datagram {
+        private final ByteBuffer data;
+        private final SocketAddress remote;
+
+        Datagram(ByteBuffer data, SocketAddress remote) {
+            this.data = data;
+            this.remote = remote;
+        }
+    }
+
+    PooledUDPConnection(UDPSocketPool pool, SelectLoop loop) {
+        super(null, SINGLE_PORT_BUFFER_SIZE, loop);
+        this.pool = pool;
+    }
+
+    /**
+     * Open the socket on a random port on the pool's local address.
+     */
+    protected void connect() {
+        try {
+            DatagramChannel sch = DatagramChannel.open();
+            sch.configureBlocking(false);
+
+            // Keep rebinding to a different random port until we find a free one
+            boolean boundOk = false;
+            while (!boundOk) {
+              try {
+        	    sch.socket().bind(localAddress);
+        	    boundOk = true;
+              } catch (java.net.SocketException e) {
+            	localAddress = NonblockingResolver.getNewInetSocketAddressWithRandomPort(localAddress.getAddress());
+            	sch.close();
+            	sch = DatagramChannel.open();
+            	sch.configureBlocking(false);
+              }
+            }
+            sk = sch.register(loop.getSelector(), SelectionKey.OP_READ);
+            sk.attach(this);
+            openedTime = System.currentTimeMillis();
+            writeReady = true;
+            setState(State.OPENED);
+        } catch(Exception e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Open the socket straight away, on the select thread.
+     * @param addr the local address to bind to
+     */
+    void open(InetAddress addr) {
+        setLocalAddress(NonblockingResolver.getNewInetSocketAddressWithRandomPort(addr));
+        setState(State.OPENING);
+        connect();
+    }
+
+    /**
+     * Send a query, and register the listener for its response.
+     * @return false if a query to that server with that header ID is already
+     * outstanding on this socket
+     */
+    boolean sendQuery(ConnectionListener l, InetSocketAddress remote, int id, byte[] data) {
+        Key key = new Key(remote, id);
+        if (pending.containsKey(key)) {
+            return false;
+        }
+        pending.put(key, l);
+        datagrams.add(new Datagram(ByteBuffer.wrap(data), remote));
+        writeQueued();
+        return true;
+    }
+
+    /**
+     * Stop waiting for a response. Called when the query is answered or times out.
+     */
+    void unregister(ConnectionListener l, InetSocketAddress remote, int id) {
+        Key key = new Key(remote, id);
+        if (pending.get(key) == l) {
+            pending.remove(key);
+        }
+        closeIfRetired();
+    }
+
+    /**
+     * @return true if the socket is still open and has not yet been in use
+     * for longer than the rotation interval
+     */
+    boolean isUsable(long rotationMillis) {
+        return !retiring && (getState() == State.OPENED) &&
+                (System.currentTimeMillis() - openedTime < rotationMillis);
+    }
+
+    /**
+     * Stop handing out this socket. It is closed once its outstanding queries have finished.
+     */
+    void retire() {
+        retiring = true;
+        closeIfRetired();
+    }
+
+    private void closeIfRetired() {
+        if (retiring && pending.isEmpty()) {
+            close();
+        }
+    }
+
+    public void doConnect() {
+        // Nothing to do for UDP
+    }
+
+    public void doWrite() {
+        if (sk.isValid()) {
+            writeReady = true;
+            writeQueued();
+        }
+        else closeComplete();
+    }
+
+    protected void writeQueued() {
+        if (!writeReady || sk == null) {
+            return;
+        }
+        DatagramChannel sc = (DatagramChannel)sk.channel();
+        while (!datagrams.isEmpty()) {
+            Datagram d = (Datagram)datagrams.getFirst();
+            try {
+                if (sc.send(d.data, d.remote) == 0) {
+                    // Socket buffer full - wait until we can write again
+                    writeReady = false;
+                    sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            } catch (IOException e) {
+                // Drop it - the query will time out
+            }
+            datagrams.removeFirst();
+        }
+        sk.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read all the waiting datagrams, and pass each one which matches an
+     * outstanding query to the listener for that query.
+     */
+    public void doRead() {
+        DatagramChannel sc = (DatagramChannel)sk.channel();
+        BufferPool bufferPool = loop.getBufferPool();
+        ByteBuffer inBuf = bufferPool.acquire();
+        try {
+            while (sc.isOpen()) {
+                SocketAddress from;
+                inBuf.clear();
+                try {
+                    from = sc.receive(inBuf);
+                } catch (IOException e) {
+                    return;
+                }
+                if (from == null) {
+                    return;
+                }
+                int len = inBuf.position();
+                if (len < 2) {
+                    continue;
+                }
+                int id = ((inBuf.get(0) & 0xFF) << 8) + (inBuf.get(1) & 0xFF);
+                // The listener stays registered until it unregisters - it
+                // may not accept this packet, and keep waiting for the answer
+                ConnectionListener l = (ConnectionListener)pending.get(new Key(from, id));
+                if (l != null) {
+                    byte[] packet = new byte[len];
+                    inBuf.flip();
+                    inBuf.get(packet);
+                    l.dataAvailable(packet, this);
+                }
+            }
+        } finally {
+            bufferPool.release(inBuf);
+        }
+    }
+
+    protected void write(ByteBuffer buf) {
+        // Datagrams are sent by writeQueued()
+    }
+
+    /**
+     * The socket is shared, so a query finishing must not close it.
+     */
+    public boolean disconnect() {
+        return true;
+    }
+
+    protected boolean close() {
+        boolean didClose = false;
+        if ((getState() != State.CLOSED) && (sk != null)) {
+            DatagramChannel sc = (DatagramChannel)sk.channel();
+            if (sc != null && sc.isOpen()) {
+                didClose = true;
+                setState(State.CLOSING);
+                closeComplete();
+            }
+        }
+        pool.closed(this);
+        return didClose;
+    }
+
+    protected void closeChannel() throws IOException {
+        DatagramChannel sc = (DatagramChannel)sk.channel();
+        if(sc != null && sc.isOpen()) {
+            sc.close();
+        }
+    }
+}
@@ -23,17 +23,22 @@ import org.xbill.DNS.TSIG;
 public class QueryData {
     Connection connection;
     Message query;
+    private byte[] queryWire = null;
     Object id;
     boolean responded = false;
     TSIG tsig;
     boolean tcp;
     boolean ignoreTruncation;
     private long endTime;
+    private Timer.Timeout timeout;
     private ResponseQueue responseQueue;
     private ResolverListener listener = null;
     protected int udpSize;
     private boolean sent = false;
+    private boolean resent = false;
     private boolean answered = false;
+    private boolean rawResponse = false;
+    private QueryCompletionListener completionListener = null;
 
     public Connection getConnection() {
         return connection;
@@ -49,6 +54,32 @@ public class QueryData {
 
     public void setQuery(Message query) {
         this.query = query;
+        this.queryWire = null;
+    }
+
+    /**
+     * @return the wire format of the query, rendered once and then reused
+     */
+    public byte[] getQueryWire() {
+        if (queryWire == null) {
+            queryWire = query.toWire(Message.MAXLENGTH);
+        }
+        return queryWire;
+    }
+
+    /**
+     * Set a pre-encoded query. The Message may then be left null, unless
+     * the query is to be signed with TSIG.
+     */
+    public void setQueryWire(byte[] queryWire) {
+        this.queryWire = queryWire;
+    }
+
+    /**
+     * @return the DNS header ID of the query
+     */
+    public int getHeaderId() {
+        return WireHeader.getId(getQueryWire());
     }
 
     public Object getId() {
@@ -99,6 +130,14 @@ public class QueryData {
         this.endTime = endTime;
     }
 
+    public Timer.Timeout getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Timer.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
     public ResponseQueue getResponseQueue() {
         return responseQueue;
     }
@@ -131,6 +170,18 @@ public class QueryData {
         this.sent = sent;
     }
 
+    /**
+     * @return true if the query has already been sent again, after the TCP
+     * connection it was sent on closed without answering it
+     */
+    public boolean isResent() {
+        return resent;
+    }
+
+    public void setResent(boolean resent) {
+        this.resent = resent;
+    }
+
     public boolean isAnswered() {
         return answered;
     }
@@ -138,4 +189,27 @@ public class QueryData {
     public void setAnswered(boolean answered) {
         this.answered = answered;
     }
+
+    public boolean isRawResponse() {
+        return rawResponse;
+    }
+
+    /**
+     * @param rawResponse true to return the response's wire data, and only
+     * decode it when the client asks for the Message
+     */
+    public void setRawResponse(boolean rawResponse) {
+        this.rawResponse = rawResponse;
+    }
+
+    public QueryCompletionListener getCompletionListener() {
+        return completionListener;
+    }
+
+    /**
+     * @param completionListener told when the query completes, or null
+     */
+    public void setCompletionListener(QueryCompletionListener completionListener) {
+        this.completionListener = completionListener;
+    }
 }
@@ -16,23 +16,16 @@ limitations under the License.
 
 package uk.nominet.dnsjnio;
 
-public class ListenerAndData {
-    TimerListener listener;
-    QueryData qData;
+import java.io.IOException;
 
-    public TimerListener getListener() {
-        return listener;
-    }
-
-    public void setListener(TimerListener listener) {
-        this.listener = listener;
-    }
-
-    public QueryData getqData() {
-        return qData;
-    }
+/**
+ * Returned for a query which was not sent, because too many queries were
+ * already in flight (see InFlightLimiter)
+ */
+public class QueryRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
 
-    public void setqData(QueryData qData) {
-        this.qData = qData;
+    public QueryRejectedException(String message) {
+        super(message);
     }
 }
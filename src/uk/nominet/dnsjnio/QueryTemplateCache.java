@@ -0,0 +1,213 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * A cache of encoded queries, so that a query for the same question can be
+ * sent again without cloning and encoding the Message each time - only the
+ * two bytes of the header ID are filled in.
+ * Only simple queries are cached: one question, no other records (the OPT
+ * record, if any, comes from the resolver's EDNS settings), and no TSIG.
+ * The cache is least recently used, and safe to use from several threads.
+ */
+public class QueryTemplateCache {
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final int[] FLAGS = {Flags.QR, Flags.AA, Flags.TC, Flags.RD, Flags.RA, Flags.AD, Flags.CD};
+
+    private final Map templates;
+    private int maxSize;
+
+    /**
+     * The wire format of a query, with a header ID of zero.
+     */
+    public static class Template {
+        private final byte[] wire;
+        private final int udpSize;
+
+        Template(byte[] wire, int udpSize) {
+            this.wire = wire;
+            this.udpSize = udpSize;
+        }
+
+        /**
+         * @return a copy of the query with the given header ID
+         */
+        public byte[] newQuery(int id) {
+            byte[] query = new byte[wire.length];
+            System.arraycopy(wire, 0, query, 0, wire.length);
+            WireHeader.setId(query, id);
+            return query;
+        }
+
+        /**
+         * @return the largest UDP response the query allows for
+         */
+        public int getUdpSize() {
+            return udpSize;
+        }
+    }
+
+    /**
+     * What makes two queries encode to the same bytes, apart from the ID.
+     */
+    private static class Key {
+        private final Name name;
+        private final int type;
+        private final int dclass;
+        private final int flags;
+        private final OPTRecord edns;
+
+        Key(Record question, int flags, OPTRecord edns) {
+            this.name = question.getName();
+            this.type = question.getType();
+            this.dclass = question.getDClass();
+            this.flags = flags;
+            this.edns = edns;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            // The EDNS settings are compared by identity - the resolver
+            // makes a new OPTRecord whenever they change
+            return (type == other.type) && (dclass == other.dclass) &&
+                    (flags == other.flags) && (edns == other.edns) &&
+                    name.equals(other.name) && sameCase(name, other.name);
+        }
+
+        public int hashCode() {
+            return ((name.hashCode() * 31 + type) * 31 + dclass) * 31 + flags;
+        }
+
+        /**
+         * Name.equals() ignores case, but the template has to send the
+         * name exactly as the client gave it.
+         */
+        private static boolean sameCase(Name a, Name b) {
+            for (int i = 0; i < a.labels(); i++) {
+                if (!Arrays.equals(a.getLabel(i), b.getLabel(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public QueryTemplateCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the most templates to keep - 0 turns the cache off
+     */
+    public QueryTemplateCache(int maxSize) {
+        this.maxSize = maxSize;
+        templates = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > QueryTemplateCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Work out the cache key for a query.
+     * @param query the query, before EDNS is applied
+     * @param edns the OPT record the resolver will add, or null
+     * @return the key, or null if the query can't be cached
+     */
+    public static Object getKey(Message query, OPTRecord edns) {
+        if (query.getHeader().getOpcode() != Opcode.QUERY ||
+                query.getHeader().getRcode() != 0 ||
+                query.getHeader().getCount(Section.QUESTION) != 1 ||
+                query.getHeader().getCount(Section.ANSWER) != 0 ||
+                query.getHeader().getCount(Section.AUTHORITY) != 0 ||
+                query.getHeader().getCount(Section.ADDITIONAL) != 0) {
+            return null;
+        }
+        int flags = 0;
+        for (int i = 0; i < FLAGS.length; i++) {
+            if (query.getHeader().getFlag(FLAGS[i])) {
+                flags |= 1 << FLAGS[i];
+            }
+        }
+        return new Key(query.getQuestion(), flags, edns);
+    }
+
+    /**
+     * @return the template for the key, or null if there isn't one
+     */
+    public synchronized Template get(Object key) {
+        return (Template)templates.get(key);
+    }
+
+    /**
+     * Add a template to the cache.
+     * @param key the key from getKey()
+     * @param query the encoded query, which is copied
+     * @param udpSize the largest UDP response the query allows for
+     * @return the template
+     */
+    public Template put(Object key, byte[] query, int udpSize) {
+        byte[] wire = new byte[query.length];
+        System.arraycopy(query, 0, wire, 0, query.length);
+        WireHeader.setId(wire, 0);
+        Template template = new Template(wire, udpSize);
+        synchronized (this) {
+            if (maxSize > 0) {
+                templates.put(key, template);
+            }
+        }
+        return template;
+    }
+
+    /**
+     * @param maxSize the most templates to keep - 0 turns the cache off
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        // Drop the least recently used templates
+        Iterator it = templates.keySet().iterator();
+        while ((templates.size() > maxSize) && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int size() {
+        return templates.size();
+    }
+}
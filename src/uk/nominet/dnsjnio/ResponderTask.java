@@ -22,18 +22,19 @@ import org.xbill.DNS.ResolverListener;
 /**
  * This class is used when a NonblockingResolver is used with
  * the old sendAsync(...ResolverListener) method.
+ * It calls the listener back, when run by the resolver's callback Executor.
  */
-public class ResponderThread extends Thread {
+public class ResponderTask implements Runnable {
     Object id;
     Message response;
     ResolverListener listener;
     Exception e;
-    public ResponderThread(ResolverListener listener, Object id, Message response) {
+    public ResponderTask(ResolverListener listener, Object id, Message response) {
         this.listener = listener;
         this.id = id;
         this.response = response;
     }
-    public ResponderThread(ResolverListener listener, Object id, Exception e) {
+    public ResponderTask(ResolverListener listener, Object id, Exception e) {
         this.listener = listener;
         this.id = id;
         this.e = e;
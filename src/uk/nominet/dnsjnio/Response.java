@@ -17,14 +17,18 @@ limitations under the License.
 package uk.nominet.dnsjnio;
 
 import org.xbill.DNS.Message;
+import org.xbill.DNS.WireParseException;
 
 /**
  * This bean encapsulates the query response.
+ * Responses to queries sent with NonblockingResolver.sendAsyncRaw() carry
+ * the wire data, and are only decoded when getMessage() is first called.
  */
 public class Response {
 
     private Object id;
     private Message message;
+    private byte[] wireData;
     private Exception exception;
     private boolean isException = false;
 
@@ -32,10 +36,42 @@ public class Response {
         return id;
     }
 
-    public Message getMessage() {
+    /**
+     * Get the response, decoding it from the wire data if that has not been
+     * done yet.
+     * @return the response, or null if it could not be decoded
+     */
+    public synchronized Message getMessage() {
+        if ((message == null) && (wireData != null)) {
+            try {
+                message = decodeMessage();
+            } catch (WireParseException e) {
+                return null;
+            }
+        }
         return message;
     }
 
+    /**
+     * Decode the response from the wire data, reporting any parse error.
+     * @return the response, or null if there was no response
+     * @throws WireParseException if the response is malformed
+     */
+    public synchronized Message decodeMessage() throws WireParseException {
+        if ((message == null) && (wireData != null)) {
+            message = NonblockingResolver.parseMessage(wireData);
+        }
+        return message;
+    }
+
+    /**
+     * @return the response exactly as it was received, or null if the query
+     * was not sent with sendAsyncRaw()
+     */
+    public byte[] getWireData() {
+        return wireData;
+    }
+
     public Exception getException() {
         return exception;
     }
@@ -52,6 +88,10 @@ public class Response {
         this.message = message;
     }
 
+    public void setWireData(byte[] wireData) {
+        this.wireData = wireData;
+    }
+
     public void setException(Exception exception) {
         this.exception = exception;
     }
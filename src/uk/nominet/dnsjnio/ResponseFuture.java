@@ -0,0 +1,68 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.xbill.DNS.Message;
+
+/**
+ * The future returned by sendAsync(Message). It is also the listener for its
+ * query, and is completed straight from the transaction - on the select
+ * thread, so dependent stages should use the *Async methods (or a thread of
+ * their own) if they have any real work to do.
+ */
+class ResponseFuture extends CompletableFuture<Message> implements InlineListener {
+    public void receiveMessage(Object id, Message m) {
+        complete(m);
+    }
+
+    public void handleException(Object id, Exception e) {
+        completeExceptionally(e);
+    }
+
+    /**
+     * Wait for the response, for the blocking send() methods. The thread is
+     * parked rather than waiting on a monitor, so a virtual thread doesn't
+     * pin its carrier while the query is in flight.
+     * @return the response
+     * @throws IOException the exception the query failed with, or an
+     *             InterruptedIOException if the thread was interrupted
+     */
+    Message getResponse() throws IOException {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SocketTimeoutException) {
+                throw new SocketTimeoutException();
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else {
+                throw new IllegalStateException("Unexpected exception!\r\n"
+                        + cause);
+            }
+        }
+    }
+}
@@ -16,40 +16,112 @@ limitations under the License.
 
 package uk.nominet.dnsjnio;
 
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements a simple queue.
  * It blocks threads wishing to remove an object from the queue
  * until an object is available.
+ * <p>
+ * The queue is lock-free (a LinkedTransferQueue), so any number of 
+ * resolver threads may insert while any number of clients remove, and a 
+ * waiting virtual thread is simply parked rather than pinning its carrier.
  */
 public class ResponseQueue
 {
-	protected LinkedList list = new LinkedList();
-	protected  int waitingThreads = 0;
-                                                                                        
+	private final LinkedTransferQueue queue = new LinkedTransferQueue();
+
     /**
      * This method is called internally to add a new Response to the queue.
      * @param response the new Response
      */
-    public synchronized void insert(Response response)
+    public void insert(Response response)
 	{
-		list.addLast(response);
-		notify();
+		queue.offer(response);
 	}
 
-	public synchronized Response getItem()
+	/**
+	 * Wait for the next Response. The wait can not be interrupted - if the
+	 * thread is interrupted while waiting, its interrupt status is set again
+	 * once a Response has been returned.
+	 * @return the next Response
+	 */
+	public Response getItem()
 	{
-		while ( isEmpty() ) {
-			try	{ waitingThreads++; wait();}
-			catch (InterruptedException e)	{
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return take();
+				} catch (InterruptedException e) {
+					interrupted = true;
 				}
-			waitingThreads--;
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
-		return (Response)(list.removeFirst());
+	}
+
+	/**
+	 * Wait for the next Response.
+	 * @return the next Response
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Response take() throws InterruptedException
+	{
+		return (Response)queue.take();
+	}
+
+	/**
+	 * @return the next Response, or null if there is none waiting
+	 */
+	public Response poll()
+	{
+		return (Response)queue.poll();
+	}
+
+	/**
+	 * Wait up to the given time for the next Response.
+	 * @return the next Response, or null if none arrived in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Response poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return (Response)queue.poll(timeout, unit);
+	}
+
+	/**
+	 * Remove all the waiting Responses, adding them to the collection.
+	 * @return the number of Responses moved
+	 */
+	public int drainTo(Collection responses)
+	{
+		return queue.drainTo(responses);
+	}
+
+	/**
+	 * Remove up to maxResponses of the waiting Responses, adding them to 
+	 * the collection. This does not wait - use take() or poll(timeout) to
+	 * wait for the first of a batch, and then drain the rest.
+	 * @return the number of Responses moved
+	 */
+	public int drainTo(Collection responses, int maxResponses)
+	{
+		return queue.drainTo(responses, maxResponses);
+	}
+
+	/**
+	 * @return the number of Responses waiting to be removed
+	 */
+	public int size() {
+		return queue.size();
 	}
 
 	public boolean isEmpty() {
-		return 	(list.size() - waitingThreads <= 0);
+		return queue.isEmpty();
 	}
 }
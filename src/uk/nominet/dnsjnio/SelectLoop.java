@@ -0,0 +1,229 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class runs a single select thread, with its own Selector,
+ * its own queue of invocations, its own Timer and its own BufferPool.
+ * The DnsController holds a group of these. Each Connection is pinned
+ * to one SelectLoop for its whole life, so all the I/O for a Connection
+ * happens on the same thread.
+ * The invocation queue is lock-free : any number of client threads can
+ * add tasks, and the select thread drains all the pending tasks in one pass.
+ * A client thread may also open a batch (beginBatch()), in which case its
+ * tasks are held back until endBatch(), and then handed to each loop as a
+ * single task - so a batch of queries costs one handoff and (at most) one
+ * wakeup per loop, and their writes are made back to back.
+ */
+public class SelectLoop {
+    // The batch open on the calling thread, if any
+    private static final ThreadLocal batches = new ThreadLocal();
+    private final Queue invocations = new ConcurrentLinkedQueue();
+    // True if selector.wakeup() has been called since the loop last looked at the queue
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private Selector selector;
+    private final Thread selectThread;
+    private final Timer timer = new Timer(this);
+    private final BufferPool bufferPool = new BufferPool();
+
+    SelectLoop(String name) {
+        try {
+            selector = Selector.open();
+        } catch(IOException ie) {
+            // log error?
+            System.out.println("Error - can't open selector\r\n" + ie);
+        }
+        selectThread = new Thread(name) {
+            public void run() {
+            	while (true) {
+	            	try {
+	            		selectLoop();
+	            	} catch (Throwable t) {
+                        System.out.println("Caught exception in " + getName() + " thread\r\n" + t);
+	            	}
+            	}
+            }
+        };
+        selectThread.setDaemon(true);
+    }
+
+    void start() {
+        selectThread.start();
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * @return the Timer which handles the timeouts for this loop's Connections
+     */
+    public Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return the read buffers for this loop's Connections
+     * (only to be used on the select thread)
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private void selectLoop() {
+        Runnable task;
+        while (true) {
+            // Clear the flag before draining, so that a task added after the
+            // queue has been drained always wakes the selector.
+            wakeupPending.set(false);
+            while ((task = (Runnable)(invocations.poll())) != null) {
+                task.run();
+            }
+
+            try {
+            	// Only block until the next bucket of the timing wheel is due
+                selector.select(timer.getSelectTimeout());
+            } catch(Exception e) {
+                System.out.println("Exception caught in select loop\r\n" + e);
+            }
+
+            // process any selected keys
+            Set selectedKeys = selector.selectedKeys();
+            Iterator it = selectedKeys.iterator();
+            while(it.hasNext()) {
+                SelectionKey key = (SelectionKey)(it.next());
+                Connection conn = (Connection)key.attachment();
+                int kro = key.readyOps();
+                if((kro & SelectionKey.OP_READ) == SelectionKey.OP_READ) {
+                    conn.doRead();
+                }
+                if((kro & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
+                    conn.doWrite();
+                }
+                if((kro & SelectionKey.OP_CONNECT) == SelectionKey.OP_CONNECT) {
+                    conn.doConnect();
+                }
+                it.remove();
+            }
+
+            timer.expireTimeouts();
+        }
+    }
+
+    /**
+     * Queue a task to be run on this loop's select thread.
+     * @param task the task to run
+     */
+    public void invoke(Runnable task) {
+        Batch batch = (Batch)batches.get();
+        if (batch != null) {
+            batch.add(this, task);
+            return;
+        }
+        invocations.offer(task);
+        if (!wakeupPending.getAndSet(true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return true if the calling thread is this loop's select thread
+     */
+    public boolean isSelectThread() {
+        return Thread.currentThread() == selectThread;
+    }
+
+    /**
+     * Start holding back the tasks the calling thread invokes, on any loop,
+     * until the matching endBatch(). Batches may be nested - only the
+     * outermost endBatch() hands the tasks over.
+     */
+    static void beginBatch() {
+        Batch batch = (Batch)batches.get();
+        if (batch == null) {
+            batch = new Batch();
+            batches.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * @return true if the calling thread has a batch open
+     */
+    static boolean inBatch() {
+        return batches.get() != null;
+    }
+
+    /**
+     * Hand the tasks held back since beginBatch() to their loops, as one
+     * task per loop. The tasks for each loop are run in the order they
+     * were invoked.
+     */
+    static void endBatch() {
+        Batch batch = (Batch)batches.get();
+        if (batch == null || --batch.depth > 0) {
+            return;
+        }
+        batches.remove();
+        Iterator it = batch.tasks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry)it.next();
+            final List tasks = (List)entry.getValue();
+            ((SelectLoop)entry.getKey()).invoke(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < tasks.size(); i++) {
+                        try {
+                            ((Runnable)tasks.get(i)).run();
+                        } catch (Throwable t) {
+                            System.out.println("Caught exception in batched task\r\n" + t);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The tasks held back by one thread, by loop
+     */
+    private static class Batch {
+        int depth = 0;
+        final Map tasks = new HashMap();
+
+        void add(SelectLoop loop, Runnable task) {
+            List loopTasks = (List)tasks.get(loop);
+            if (loopTasks == null) {
+                loopTasks = new ArrayList();
+                tasks.put(loop, loopTasks);
+            }
+            loopTasks.add(task);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+import org.xbill.DNS.Message;
+
+/**
+ * A group of SinglePortTransactionControllers talking to the same upstream.
+ * Each controller (shard) has its own local port and its own 16-bit ID space,
+ * so the group can keep more than 65536 queries in flight, and a query whose
+ * ID is busy on one shard can still go out over another.
+ * Shard 0 uses the configured local address. Further shards are only opened
+ * when they are needed, each on a random local port, up to the maximum.
+ * Each shard holds about half a megabyte of tables, so even shard 0 is only
+ * created once a query first needs it - most resolvers never use single
+ * port mode.
+ */
+public class SinglePortControllerGroup {
+    public static final int DEFAULT_MAX_SHARDS = 8;
+    // Prefer to open a new shard once every shard has this many queries in flight
+    static final int SHARD_HIGH_WATER = IdAllocator.NUM_IDS / 4;
+
+    private volatile SinglePortTransactionController[] shards;
+    private int maxShards = DEFAULT_MAX_SHARDS;
+    private int maxTcpConnections = TCPConnectionPool.DEFAULT_MAX_CONNECTIONS;
+    private int maxTcpQueriesPerConnection = TCPConnectionPool.DEFAULT_MAX_QUERIES_PER_CONNECTION;
+    private int tcpIdleTimeout = TCPConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private Executor callbackExecutor = CallbackExecutors.getDefault();
+    private InetSocketAddress remoteAddress;
+    private InetSocketAddress localAddress;
+
+    public SinglePortControllerGroup(InetSocketAddress remoteAddr, InetSocketAddress localAddr) {
+        this.remoteAddress = remoteAddr;
+        this.localAddress = localAddr;
+        shards = new SinglePortTransactionController[0];
+    }
+
+    public synchronized void setRemoteAddress(InetSocketAddress addr) {
+        this.remoteAddress = addr;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setRemoteAddress(addr);
+        }
+    }
+
+    public synchronized void setLocalAddress(InetSocketAddress addr) {
+        this.localAddress = addr;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setLocalAddress(getShardLocalAddress(i));
+        }
+    }
+
+    /**
+     * Set the maximum number of shards (local ports) to open
+     */
+    public synchronized void setMaxShards(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Must allow at least one shard");
+        }
+        this.maxShards = max;
+    }
+
+    public synchronized int getMaxShards() {
+        return maxShards;
+    }
+
+    /**
+     * Set the maximum number of TCP connections each shard may open
+     * (only used if the shard's local port is not fixed)
+     */
+    public synchronized void setMaxTcpConnections(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Must allow at least one TCP connection");
+        }
+        this.maxTcpConnections = max;
+        configureShards();
+    }
+
+    /**
+     * Set the maximum number of queries in flight on each TCP connection
+     */
+    public synchronized void setMaxTcpQueriesPerConnection(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Must allow at least one query per TCP connection");
+        }
+        this.maxTcpQueriesPerConnection = max;
+        configureShards();
+    }
+
+    /**
+     * Set how long a TCP connection may stay open with nothing in flight
+     */
+    public synchronized void setTcpIdleTimeout(int millis) {
+        this.tcpIdleTimeout = millis;
+        configureShards();
+    }
+
+    /**
+     * Set the Executor which runs the shards' ResolverListener callbacks
+     */
+    public synchronized void setCallbackExecutor(Executor executor) {
+        this.callbackExecutor = executor;
+        configureShards();
+    }
+
+    private void configureShards() {
+        for (int i = 0; i < shards.length; i++) {
+            configure(shards[i]);
+        }
+    }
+
+    private void configure(SinglePortTransactionController shard) {
+        TCPConnectionPool pool = shard.getTcpPool();
+        pool.setMaxConnections(maxTcpConnections);
+        pool.setMaxQueriesPerConnection(maxTcpQueriesPerConnection);
+        pool.setIdleTimeout(tcpIdleTimeout);
+        shard.setCallbackExecutor(callbackExecutor);
+    }
+
+    /**
+     * @return the number of shards currently open
+     */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    public boolean headerIdNotInUse(int id) {
+        SinglePortTransactionController[] s = shards;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i].headerIdNotInUse(id)) {
+                return true;
+            }
+        }
+        return s.length < getMaxShards();
+    }
+
+    /**
+     * Reserve a header ID chosen by the caller, on the first shard which
+     * has it free and is not too busy. Opens a new shard if need be.
+     * @return the shard holding the ID, or null if no shard could take it
+     */
+    public SinglePortTransactionController acquireHeaderId(int id) {
+        SinglePortTransactionController[] s = shards;
+        for (int i = 0; i < s.length; i++) {
+            if ((s[i].getInFlightCount() < SHARD_HIGH_WATER) && s[i].acquireHeaderId(id)) {
+                return s[i];
+            }
+        }
+        SinglePortTransactionController shard = addShard(s);
+        if ((shard != null) && shard.acquireHeaderId(id)) {
+            return shard;
+        }
+        s = shards;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i].acquireHeaderId(id)) {
+                return s[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reserve a random free header ID on the least loaded shard, and set it
+     * in the query. Opens a new shard if every shard is busy.
+     * @return the shard holding the ID, or null if no shard has a free ID
+     */
+    public SinglePortTransactionController allocateHeaderId(Message query) {
+        return allocateHeaderId(query, null);
+    }
+
+    /**
+     * Reserve a random free header ID on the least loaded shard, and write
+     * it in to the encoded query. Opens a new shard if every shard is busy.
+     * @return the shard holding the ID, or null if no shard has a free ID
+     */
+    public SinglePortTransactionController allocateHeaderId(byte[] queryWire) {
+        return allocateHeaderId(null, queryWire);
+    }
+
+    private SinglePortTransactionController allocateHeaderId(Message query, byte[] queryWire) {
+        SinglePortTransactionController[] s = shards;
+        if (s.length == 0) {
+            addShard(s);
+            s = shards;
+        }
+        SinglePortTransactionController best = s[0];
+        for (int i = 1; i < s.length; i++) {
+            if (s[i].getInFlightCount() < best.getInFlightCount()) {
+                best = s[i];
+            }
+        }
+        if (best.getInFlightCount() >= SHARD_HIGH_WATER) {
+            SinglePortTransactionController shard = addShard(s);
+            if (shard != null) {
+                best = shard;
+            }
+        }
+        int id = best.allocateHeaderId();
+        if (id < 0) {
+            // Full - try the others before giving up
+            s = shards;
+            for (int i = 0; (i < s.length) && (id < 0); i++) {
+                best = s[i];
+                id = best.allocateHeaderId();
+            }
+            if (id < 0) {
+                return null;
+            }
+        }
+        if (query != null) {
+            query.getHeader().setID(id);
+        } else {
+            WireHeader.setId(queryWire, id);
+        }
+        return best;
+    }
+
+    /**
+     * Open another shard, unless another thread has already done so since
+     * the caller looked at the shards, or the maximum has been reached.
+     * @return the new shard, or null if none was opened
+     */
+    private synchronized SinglePortTransactionController addShard(SinglePortTransactionController[] seen) {
+        if ((shards != seen) || (shards.length >= maxShards)) {
+            return null;
+        }
+        SinglePortTransactionController[] newShards = new SinglePortTransactionController[shards.length + 1];
+        System.arraycopy(shards, 0, newShards, 0, shards.length);
+        SinglePortTransactionController shard = new SinglePortTransactionController(
+                remoteAddress, getShardLocalAddress(shards.length));
+        configure(shard);
+        newShards[shards.length] = shard;
+        shards = newShards;
+        return shard;
+    }
+
+    private InetSocketAddress getShardLocalAddress(int shard) {
+        if (shard == 0) {
+            return localAddress;
+        }
+        // Let the connections pick their own port
+        return new InetSocketAddress(localAddress.getAddress(), 0);
+    }
+}
@@ -18,9 +18,6 @@ package uk.nominet.dnsjnio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 
 import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
@@ -32,32 +29,56 @@ import org.xbill.DNS.ResolverListener;
  * Each Resolver will run on a different port, which has one TCP and one UDP connection to a server.
  * When a query comes in, we need to check status of current Connection
  * Either reuse it or reopen it.
+ * Each query holds its header ID in an IdAllocator from submission until it completes.
  * If a query needs to sent with a header ID which is currently in use on this port, then a new standard Transaction object is used on a new port.
- * When a query ends (response or timeout) then the numQueries should be decremented and the Connection closed if numQueries == 0.
+ * TCP queries are pipelined over a TCPConnectionPool of persistent connections, which are closed once idle.
+ * The UDP Connection is kept open between queries, and only replaced if the remote or local address changes.
  */
 public class SinglePortTransactionController extends AbstractTransaction {
-    // Keep list of outstanding queries (connection, responseQueue, listener, id)
-    // When a packet comes in, get the id, and check all outstanding queries for that id.
-    private Map tcpQueryDataMap = new HashMap();
-    private Map udpQueryDataMap = new HashMap();
-    private TCPConnection tcpConnection;
+    // Keep table of outstanding queries (connection, responseQueue, listener, id)
+    // When a packet comes in, get the id, and look up the query in that slot.
+    private final InFlightTable tcpQueryDataTable = new InFlightTable();
+    private final InFlightTable udpQueryDataTable = new InFlightTable();
+    // Header IDs reserved by queries on this upstream, from submission until completion
+    private final IdAllocator idAllocator = new IdAllocator();
+    private final TCPConnectionPool tcpPool = new TCPConnectionPool(this);
     private UDPConnection udpConnection;
     protected InetSocketAddress remoteAddress;
     protected InetSocketAddress localAddress;
 
     public boolean headerIdNotInUse(int id) {
-        // Search the queryDataList for this ID.
-        synchronized(tcpQueryDataMap) {
-            if (tcpQueryDataMap.keySet().contains(new Integer(id))) {
-                return false;
-            }
-        }
-        synchronized(udpQueryDataMap) {
-            if (udpQueryDataMap.keySet().contains(new Integer(id))) {
-                return false;
-            }
-        }
-        return true;
+        return !idAllocator.isInUse(id);
+    }
+
+    /**
+     * Reserve a header ID chosen by the caller. A query must hold its ID
+     * before it is passed to sendQuery().
+     * @return true if the ID was free
+     */
+    public boolean acquireHeaderId(int id) {
+        return idAllocator.tryAcquire(id);
+    }
+
+    /**
+     * Reserve a random free header ID.
+     * @return the ID, or -1 if all the IDs are in use
+     */
+    public int allocateHeaderId() {
+        return idAllocator.allocate();
+    }
+
+    /**
+     * Release a header ID reserved for a query which was then not sent here
+     */
+    public void releaseHeaderId(int id) {
+        idAllocator.release(id);
+    }
+
+    /**
+     * @return the number of queries holding a header ID on this controller
+     */
+    public int getInFlightCount() {
+        return idAllocator.getInUseCount();
     }
 
     static int udpOpenedCount = 0;
@@ -68,47 +89,27 @@ public class SinglePortTransactionController extends AbstractTransaction {
     protected void startConnect(QueryData qData) {
         startTimer(qData);
         if (qData.isTcp()) {
-            synchronized(tcpQueryDataMap) {
-                tcpQueryDataMap.put(new Integer(qData.getQuery().getHeader().getID()), qData);
-            }
-            if (tcpConnection != null) {
-                // Deal with current state of tcpConnection
-                // Is the connection open? If so, send the query now
-                // If connection opening, then queue query now
-                // If connection closing, then reopen, and send query. Do we need to worry about queues?
-                // Add this query to the list for the connection
-                qData.setConnection(tcpConnection);
-                // Connection may not be ready just yet!
-                // Connection could still be opening - if so, then wait until open. Simply stick query in queue, and be done
-                if (tcpConnection.getState() == Connection.State.OPENING) {
-                    return;
-                }
-                if (tcpConnection.getState() == Connection.State.OPENED) {
-                    readyToSend(tcpConnection);
-                    return;
-                }
-                else if (tcpConnection.getState() == Connection.State.CLOSING) {
-                    // The query is in the queue. When the socket is closed, it will reconnect
-                    return;
-                }
-                else if (tcpConnection.getState() == Connection.State.CLOSED) {
-                    // Reopen the connection
-                    getNewTcpConnection(qData);
-                }
-            }
-            else {
-                // Fire up a new tcpConnection
-                getNewTcpConnection(qData);
+            tcpQueryDataTable.put(qData.getHeaderId(), qData);
+            // The TCP connections are only touched on the select thread
+            if (loop.isSelectThread()) {
+                tcpPool.sendQuery(qData);
+            } else {
+                final QueryData tcpQData = qData;
+                loop.invoke(new Runnable() {
+                    public void run() {
+                        tcpPool.sendQuery(tcpQData);
+                    }
+                });
             }
+            return;
         }
         else {
-            synchronized(udpQueryDataMap) {
-                udpQueryDataMap.put(new Integer(qData.getQuery().getHeader().getID()), qData);
-            }
+            udpQueryDataTable.put(qData.getHeaderId(), qData);
             if (udpConnection != null && !(udpConnection.getState() == Connection.State.CLOSED)) {
                 // Use this connection
                 // Add this query to the list for the connection
                 qData.setConnection(udpConnection);
+                udpConnection.queueQuery(qData);
                 // Connection may not be ready just yet!
                 // Connection could still be opening - if so, then wait until open. Simply stick query in queue, and be done
                 if (udpConnection.getState() == Connection.State.OPENING) {
@@ -130,33 +131,49 @@ public class SinglePortTransactionController extends AbstractTransaction {
         qData.getConnection().connect(remoteAddress, localAddress);
     }
 
-    private void getNewTcpConnection(QueryData qData) {
-        tcpConnection = new TCPConnection(this, Connection.SINGLE_PORT_BUFFER_SIZE);
-        qData.setConnection(tcpConnection);
-    }
-
     private void getNewUdpConnection(QueryData qData) {
-        udpConnection = new SinglePortUDPConnection(this, localAddress.getPort());
+        udpConnection = new SinglePortUDPConnection(this, localAddress.getPort(), loop);
         qData.setConnection(udpConnection);
+        udpConnection.queueQuery(qData);
     }
 
     public void setRemoteAddress(InetSocketAddress addr) {
         this.remoteAddress = addr;
+        dropConnections();
     }
 
     public void setLocalAddress(InetSocketAddress addr) {
         this.localAddress = addr;
+        dropConnections();
+    }
+
+    /**
+     * The connections are kept open between queries, so they must be
+     * replaced if the remote or local address changes.
+     */
+    private void dropConnections() {
+        UDPConnection c = udpConnection;
+        udpConnection = null;
+        if (c != null) {
+            c.disconnect();
+        }
+        loop.invoke(new Runnable() {
+            public void run() {
+                tcpPool.closeAll();
+            }
+        });
+    }
+
+    /**
+     * @return the persistent TCP connections to the upstream
+     */
+    public TCPConnectionPool getTcpPool() {
+        return tcpPool;
     }
 
     public SinglePortTransactionController(InetSocketAddress remoteAddr, InetSocketAddress localAddr) {
         this.remoteAddress = remoteAddr;
         this.localAddress = localAddr;
-        synchronized (tcpQueryDataMap) {
-            tcpQueryDataMap = new HashMap();
-        }
-        synchronized (udpQueryDataMap) {
-            udpQueryDataMap = new HashMap();
-        }
     }
 
     /**
@@ -191,27 +208,28 @@ public class SinglePortTransactionController extends AbstractTransaction {
      * ResponseQueue a callback at the timeout time
      */
     private void startTimer(QueryData qData) {
-        Timer.addTimeout(qData.getEndTime(), this, qData);
+        qData.setTimeout(loop.getTimer().addTimeout(qData.getEndTime(), this, qData));
     }
 
     /**
      * Disconnect.
      */
     protected boolean disconnect(QueryData qData) {
-        // We only want to disconnect if there are no outstanding queries on that connection
-        // Remove this query from the list
-        Map queryMap = getQueryDataMap(qData.getConnection());
-        boolean disconnect = false;
-        synchronized(queryMap) {
-            queryMap.remove(new Integer(qData.getQuery().getHeader().getID()));
-            if (queryMap.size() == 0) {
-                disconnect = true;
+        // Just remove this query from the table. The connections are left
+        // open for the next query - the TCPConnectionPool closes idle ones.
+        removeQuery(qData);
+        return true;
+    }
+
+    private void removeQuery(QueryData qData) {
+        int id = qData.getHeaderId();
+        if (qData.isTcp()) {
+            if (tcpQueryDataTable.remove(id, qData)) {
+                tcpPool.released(qData);
             }
+        } else {
+            udpQueryDataTable.remove(id, qData);
         }
-        if (disconnect) {
-            disconnect(qData.getConnection());
-        }
-        return true;
     }
 
     /**
@@ -219,37 +237,27 @@ public class SinglePortTransactionController extends AbstractTransaction {
      * We can now send the data.
      */
     public void readyToSend(Connection connection) {
-        QueryData qData = null;
-        do {
-            qData = getNextQueryData(connection);
-            if (qData != null) {
-                qData.setSent(true);
-                sendQuery(connection, qData.getQuery());
-            }
+        // Drain the connection's queue in order. Each query is polled by
+        // only one thread, so it can't be sent twice.
+        if (connection instanceof TCPConnection) {
+            tcpPool.opened(connection);
         }
-        while (qData != null);
-    }
-
-    private QueryData getNextQueryData(Connection c) {
-        Map queryMap = getQueryDataMap(c);
-        synchronized (queryMap) {
-            // @todo Can we optimise this?
-            for (Iterator it = queryMap.values().iterator(); it.hasNext();) {
-                QueryData qData = (QueryData)(it.next());
-                if (!(qData.isSent()) && (qData.getConnection() == c)) {
-                    return qData;
-                }
+        QueryData qData;
+        while ((qData = connection.pollQueuedQuery()) != null) {
+            if (qData.isAnswered() || (qData.getConnection() != connection)) {
+                // Timed out while it was waiting
+                continue;
             }
+            qData.setSent(true);
+            sendQuery(connection, qData.getQueryWire());
         }
-        return null;
     }
 
-    private Map getQueryDataMap(Connection c) {
-        Map queryMap = udpQueryDataMap;
-        if ((tcpConnection != null) && (c.equals(tcpConnection))) {
-            queryMap = tcpQueryDataMap;
+    private InFlightTable getQueryDataTable(Connection c) {
+        if (c instanceof TCPConnection) {
+            return tcpQueryDataTable;
         }
-        return queryMap;
+        return udpQueryDataTable;
     }
 
     /**
@@ -257,15 +265,16 @@ public class SinglePortTransactionController extends AbstractTransaction {
      * @param connection
      */
     public void closed(Connection connection) {
-        // See if any queries are still outstanding for that Connection.
-        Map queryMap = getQueryDataMap(connection);
-        boolean reconnect = false;
-        synchronized (queryMap) {
-            if (queryMap.size()!=0) {
-                reconnect = true;
-            }
+        if (connection instanceof TCPConnection) {
+            tcpPool.closed(connection);
+            return;
+        }
+        if (connection != udpConnection) {
+            // A UDP connection replaced after an address change
+            return;
         }
-        if (reconnect) {
+        // See if any queries are still outstanding for that Connection.
+        if (!getQueryDataTable(connection).isEmpty()) {
             // reconnect - the queue will be sent then.
             connection.connect(remoteAddress, localAddress);
         }
@@ -280,25 +289,30 @@ public class SinglePortTransactionController extends AbstractTransaction {
     public void dataAvailable(byte[] data, Connection connection) {
         // Now get the data, and send it back to the listener.
         // Match up the returned qData with the QueryDataList
+        // Look up the query in the table for this connection, and check the
+        // question, before decoding anything. Stray packets are just dropped.
+        if (!WireHeader.hasHeader(data)) {
+            return;
+        }
+        QueryData qData = getQueryDataTable(connection).get(WireHeader.getId(data));
+        if ((qData == null) || !WireHeader.matchesQuery(data, qData.getQueryWire())) {
+            return;
+        }
         try {
-            Message message = NonblockingResolver.parseMessage(data);
-
-            QueryData qData = null;
-
-            // Search the list for this connection
-            Map queryMap = getQueryDataMap(connection);
-            synchronized(queryMap) {
-                qData = (QueryData)(queryMap.get(new Integer(message.getHeader().getID())));
-            }
-            if (qData == null) {
-                    return; // @todo !!!
+            // Raw responses are left for the client to decode - unless they
+            // have to be decoded here to check the TSIG
+            Message message = null;
+            if (!qData.isRawResponse() || (qData.getTsig() != null)) {
+                message = NonblockingResolver.parseMessage(data);
             }
             disconnect(qData);
 
-            NonblockingResolver.verifyTSIG(qData.getQuery(), message, data, qData.getTsig());
+            if (message != null) {
+                NonblockingResolver.verifyTSIG(qData.getQuery(), message, data, qData.getTsig());
+            }
             // Now check that we got the whole message, if we're asked to do so
             if (!qData.isTcp() && !qData.isIgnoreTruncation() &&
-                    message.getHeader().getFlag(Flags.TC))
+                    WireHeader.getFlag(data, Flags.TC))
             {
                 cancelTimer(qData);
                 // Redo the query, but use tcp this time.
@@ -307,8 +321,8 @@ public class SinglePortTransactionController extends AbstractTransaction {
                 startConnect(qData);
                 return;
             }
-//            System.out.println("Returning id = " + qData.getId() + ", header id " + qData.getQuery().getHeader().getID());
-            returnResponse(message, qData);
+//            System.out.println("Returning id = " + qData.getId() + ", header id " + qData.getHeaderId());
+            returnResponse(message, data, qData);
         }
         catch (IOException e) {
             return; // Ignore it. Query will time out eventually.
@@ -317,14 +331,18 @@ public class SinglePortTransactionController extends AbstractTransaction {
 
     /**
      * Return the response to the listener
-     * @param message the response
+     * @param message the response, or null if it is to be decoded lazily
+     * @param data the wire format of the response
      */
-    private void returnResponse(Message message, QueryData qData) {
+    private void returnResponse(Message message, byte[] data, QueryData qData) {
     	if (!qData.isAnswered()) {
     		qData.setAnswered(true);
             // Stop the timer!
             cancelTimer(qData);
-            returnResponse(qData.getListener(), qData.getResponseQueue(), message, qData.getId());
+            idAllocator.release(qData.getHeaderId());
+            queryCompleted(qData.getCompletionListener(), null);
+            returnResponse(qData.getListener(), qData.getResponseQueue(), message,
+                    qData.isRawResponse() ? data : null, qData.getId());
     	}
     }
 
@@ -336,7 +354,9 @@ public class SinglePortTransactionController extends AbstractTransaction {
     		qData.setAnswered(true);
             // Stop the timer!
             cancelTimer(qData);
-//          System.out.println("Exception for " +qData.getQuery().getHeader().getID());
+            idAllocator.release(qData.getHeaderId());
+//          System.out.println("Exception for " +qData.getHeaderId());
+            queryCompleted(qData.getCompletionListener(), e);
             returnException(qData.getListener(), qData.getResponseQueue(), e, qData.getId());
     	}
     }
@@ -346,12 +366,11 @@ public class SinglePortTransactionController extends AbstractTransaction {
      * Also removes the QueryData from the list
      */
     private void cancelTimer(QueryData qData) {
-        Timer.cancelTimeout(this, qData);
-        qData.setResponded (true);
-        Map queryMap = getQueryDataMap(qData.getConnection());
-        synchronized(queryMap) {
-            queryMap.remove(new Integer(qData.getQuery().getHeader().getID()));
+        if (qData.getTimeout() != null) {
+            qData.getTimeout().cancel();
         }
+        qData.setResponded (true);
+        removeQuery(qData);
     }
 
 }
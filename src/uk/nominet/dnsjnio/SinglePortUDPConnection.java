@@ -20,19 +20,40 @@ import java.nio.channels.DatagramChannel;
 
 /**
  * Single port UDP connection.
- * This class reuses the same port.
+ * This class reuses the same port. If the local port is 0, a random port
+ * is picked once, and then kept for the life of the connection.
  */
 public class SinglePortUDPConnection extends UDPConnection {
     public SinglePortUDPConnection(ConnectionListener listener, int port) {
         super(listener, SINGLE_PORT_BUFFER_SIZE);
     }
+    public SinglePortUDPConnection(ConnectionListener listener, int port, SelectLoop loop) {
+        super(listener, SINGLE_PORT_BUFFER_SIZE, loop);
+    }
     protected void connect() {
         try {
             DatagramChannel sch = DatagramChannel.open();
             sch.configureBlocking(false);
-            sch.socket().setReuseAddress(true);
-        	sch.socket().bind(localAddress);
-            sk = sch.register(DnsController.getSelector(),0);
+            if (localAddress.getPort() == 0) {
+                // No port configured - keep trying random ports until one binds
+                boolean connectedOk = false;
+                while (!connectedOk) {
+                    try {
+                        localAddress = NonblockingResolver.getNewInetSocketAddressWithRandomPort(localAddress.getAddress());
+                        sch.socket().bind(localAddress);
+                        connectedOk = true;
+                    } catch (java.net.SocketException e) {
+                        sch.close();
+                        sch = DatagramChannel.open();
+                        sch.configureBlocking(false);
+                    }
+                }
+            }
+            else {
+                sch.socket().setReuseAddress(true);
+                sch.socket().bind(localAddress);
+            }
+            sk = sch.register(loop.getSelector(),0);
             sch.connect(remoteAddress);
             attach(sk);
         } catch(Exception e) {
@@ -27,7 +27,12 @@ import java.nio.channels.SocketChannel;
  * the Connection superclass. 
  */
 public class TCPConnection extends Connection {
+    // The most queued messages to send in one gathering write
+    private static final int MAX_MESSAGES_PER_WRITE = 64;
     boolean packetInProgress = false;
+    // Length prefix and message buffers from a partial gathering write
+    private ByteBuffer[] pendingWrite = null;
+    private int pendingOffset = 0;
     public TCPConnection(ConnectionListener listener) {
         super(listener);
     }
@@ -36,6 +41,10 @@ public class TCPConnection extends Connection {
         super (listener, buffSize);
     }
 
+    public TCPConnection(ConnectionListener listener, int buffSize, SelectLoop loop) {
+        super (listener, buffSize, loop);
+    }
+
     protected boolean close() {
     	boolean didClose = false;
         if(getState() != State.CLOSED) {
@@ -65,11 +74,16 @@ public class TCPConnection extends Connection {
     }
 
     protected void connect() {
+        // Anything part written on an earlier connection is lost
+        pendingWrite = null;
+        writeReady = false;
         try {
             SocketChannel sch = SocketChannel.open();
             sch.configureBlocking(false);
+            // DNS messages are small, and each is written in one go - don't hold them back
+            sch.socket().setTcpNoDelay(true);
         	sch.socket().bind(localAddress);
-            sk = sch.register(DnsController.getSelector(),0);
+            sk = sch.register(loop.getSelector(),0);
             sch.connect(remoteAddress);
             attach(sk);
         } catch(Exception e) {
@@ -93,30 +107,68 @@ public class TCPConnection extends Connection {
         }
     }
 
+    /**
+     * Read from the channel, and split the stream into DNS messages.
+     * Any part message left over from the last read goes at the front of a
+     * buffer borrowed from the loop, the new data is read in after it, and
+     * the length prefixes are parsed in place. Each complete message is copied
+     * out once, and only the tail of an incomplete one is kept for next time.
+     */
     public void doRead() {
         SocketChannel sc = (SocketChannel)sk.channel();
-        // Read the next set of bytes
-        readFromChannel(sc);
-        // while we have more than 2 bytes :
-        while (recvCount > 2) {
-            //      Work out the length of the next packet to expect.
-            if (recvBytes == null) {
-                break;
+        if (!sc.isOpen() || getState() == State.CLOSED) {
+            return;
+        }
+        BufferPool pool = loop.getBufferPool();
+        ByteBuffer buf = pool.acquire();
+        try {
+            if (recvCount > 0) {
+                buf.put(recvBytes, 0, recvCount);
+            }
+            int len;
+            try {
+                len = sc.read(buf);
+            } catch (IOException e) {
+                len = -1;
             }
-            int lengthNextPacket = ((recvBytes[0] & 0xFF) << 8) + (recvBytes[1] & 0xFF);
-            //      If we have that many bytes, then split the packet off, and clear the front of the recvBuffer
-            if (recvCount >= (lengthNextPacket+2)) {
-                // Split off the packet, send it to the user, and clear the front of the buffer
+            buf.flip();
+            while (buf.remaining() >= 2) {
+                int lengthNextPacket = ((buf.get(buf.position()) & 0xFF) << 8)
+                        + (buf.get(buf.position() + 1) & 0xFF);
+                if (buf.remaining() < lengthNextPacket + 2) {
+                    break;
+                }
+                buf.position(buf.position() + 2);
                 byte[] packet = new byte[lengthNextPacket];
-                System.arraycopy(recvBytes, 2, packet, 0, lengthNextPacket);
+                buf.get(packet);
                 sendToUser(packet);
-                // Now clear the buffer
-                clearRecvBytes(lengthNextPacket + 2);
+                if (getState() == State.CLOSED) {
+                    // Closed by the listener
+                    return;
+                }
             }
-            else {
-                break;
+            keepRemainder(buf);
+            if (len < 0) {
+                closeComplete();
             }
+        } finally {
+            pool.release(buf);
+        }
+    }
+
+    /**
+     * Keep the start of an incomplete message until the rest arrives
+     */
+    private void keepRemainder(ByteBuffer buf) {
+        recvCount = buf.remaining();
+        if (recvCount == 0) {
+            recvBytes = null;
+            return;
+        }
+        if ((recvBytes == null) || (recvBytes.length < recvCount)) {
+            recvBytes = new byte[Math.max(bufferSize, recvCount)];
         }
+        buf.get(recvBytes, 0, recvCount);
     }
 
     protected void write(ByteBuffer data) {
@@ -134,13 +186,51 @@ public class TCPConnection extends Connection {
         }
     }
 
-    // Add on the length bytes
-    protected byte[] decorateData(byte[] bytes) {
-        byte[] ret = new byte[bytes.length + 2];
-        System.arraycopy(bytes, 0, ret, 2, bytes.length);
-        ret[0] = (byte)(bytes.length >>> 8);
-        ret[1] = (byte)(bytes.length & 0xFF);
-        return ret;
+    /**
+     * Send the queued messages with gathering writes. Each message goes out
+     * as a 2-byte length prefix buffer followed by the message itself, so
+     * nothing is copied, and many messages go in one write call.
+     */
+    protected void writeQueued() {
+        if (!writeReady || (sk == null) || !sk.isValid()) {
+            return;
+        }
+        SocketChannel sc = (SocketChannel)sk.channel();
+        while (writeReady && sc.isOpen() && ((pendingWrite != null) || (sendQ.size() > 0))) {
+            if (pendingWrite == null) {
+                int numMessages = Math.min(sendQ.size(), MAX_MESSAGES_PER_WRITE);
+                pendingWrite = new ByteBuffer[numMessages * 2];
+                pendingOffset = 0;
+                for (int i = 0; i < numMessages; i++) {
+                    byte[] msg = (byte[])sendQ.removeFirst();
+                    ByteBuffer prefix = ByteBuffer.allocate(2);
+                    prefix.putShort((short)msg.length);
+                    prefix.flip();
+                    pendingWrite[i * 2] = prefix;
+                    pendingWrite[(i * 2) + 1] = ByteBuffer.wrap(msg);
+                }
+            }
+            try {
+                sc.write(pendingWrite, pendingOffset, pendingWrite.length - pendingOffset);
+            } catch(IOException e) {
+                e.printStackTrace();
+                closeComplete();
+                return;
+            }
+            while ((pendingOffset < pendingWrite.length) && !pendingWrite[pendingOffset].hasRemaining()) {
+                pendingOffset++;
+            }
+            if (pendingOffset < pendingWrite.length) {
+                // Socket buffer full - finish off when we can write again
+                writeReady = false;
+                sk.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+                return;
+            }
+            pendingWrite = null;
+        }
+        if (writeReady && sk.isValid()) {
+            sk.interestOps(SelectionKey.OP_READ);
+        }
     }
 
     protected void closeChannel() throws IOException {
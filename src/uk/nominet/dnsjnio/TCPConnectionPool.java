@@ -0,0 +1,279 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The persistent TCP connections from a SinglePortTransactionController to
+ * its upstream. Queries are pipelined over the connections, and responses are
+ * matched by header ID in whatever order they come back (RFC 7766).
+ * A new connection is only opened when every open one already has the
+ * maximum number of queries in flight; once the maximum number of
+ * connections is reached, further queries wait for a slot.
+ * A connection with nothing in flight is closed after the idle timeout.
+ * If a connection fails before it opens, it is retried with an exponential
+ * backoff. If an open connection is closed (as the server may do at any time)
+ * it is reopened, and the queries it had not answered are sent again - once.
+ * A query whose connection is closed on it a second time fails straight away.
+ * All the methods except the setters must be called on the controller's
+ * select thread.
+ */
+public class TCPConnectionPool {
+    public static final int DEFAULT_MAX_CONNECTIONS = 1;
+    public static final int DEFAULT_MAX_QUERIES_PER_CONNECTION = 256;
+    public static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+    static final int MIN_RECONNECT_DELAY_MILLIS = 100;
+    static final int MAX_RECONNECT_DELAY_MILLIS = 10000;
+
+    private final SinglePortTransactionController controller;
+    private final List entries = new ArrayList();
+    // Queries waiting for a connection to have room for them
+    private final LinkedList waiting = new LinkedList();
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int maxQueriesPerConnection = DEFAULT_MAX_QUERIES_PER_CONNECTION;
+    private volatile int idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    private class Entry {
+        TCPConnection connection;
+        int inFlight = 0;
+        // The queries assigned to the connection, in the order they were sent
+        final Set queries = new LinkedHashSet();
+        boolean opened = false;
+        int failures = 0;
+        Timer.Timeout idleTimeout;
+        Timer.Timeout reconnect;
+
+        Entry(TCPConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    TCPConnectionPool(SinglePortTransactionController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * Send the query over the least loaded connection which has room for it,
+     * opening a new connection if need be.
+     */
+    void sendQuery(QueryData qData) {
+        Entry entry = choose();
+        if (entry == null) {
+            waiting.add(qData);
+        } else {
+            assign(entry, qData);
+        }
+    }
+
+    private Entry choose() {
+        Entry best = null;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = (Entry)entries.get(i);
+            if ((entry.inFlight < maxQueriesPerConnection)
+                    && ((best == null) || (entry.inFlight < best.inFlight))) {
+                best = entry;
+            }
+        }
+        if ((best == null) && (entries.size() < getConnectionLimit())) {
+            best = new Entry(new TCPConnection(controller,
+                    Connection.SINGLE_PORT_BUFFER_SIZE, controller.getLoop()));
+            entries.add(best);
+        }
+        return best;
+    }
+
+    /**
+     * Only one connection can be bound to a fixed local port
+     */
+    private int getConnectionLimit() {
+        if (controller.localAddress.getPort() != 0) {
+            return 1;
+        }
+        return maxConnections;
+    }
+
+    private void assign(Entry entry, QueryData qData) {
+        entry.inFlight++;
+        entry.queries.add(qData);
+        if (entry.idleTimeout != null) {
+            entry.idleTimeout.cancel();
+            entry.idleTimeout = null;
+        }
+        TCPConnection connection = entry.connection;
+        qData.setConnection(connection);
+        connection.queueQuery(qData);
+        if (connection.getState() == Connection.State.OPENED) {
+            controller.readyToSend(connection);
+        } else if ((connection.getState() == Connection.State.CLOSED)
+                && (entry.reconnect == null)) {
+            // A new connection, which nothing else will open
+            connect(entry);
+        }
+        // Otherwise the query goes when the connection opens
+    }
+
+    private void connect(Entry entry) {
+        entry.opened = false;
+        entry.connection.connect(controller.remoteAddress, controller.localAddress);
+    }
+
+    private Entry getEntry(Connection connection) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = (Entry)entries.get(i);
+            if (entry.connection == connection) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The connection has opened
+     */
+    void opened(Connection connection) {
+        Entry entry = getEntry(connection);
+        if (entry != null) {
+            entry.opened = true;
+            entry.failures = 0;
+        }
+    }
+
+    /**
+     * A query has finished (or timed out waiting for a slot, in which case
+     * it has no connection). Hand its slot to the next waiting query, or
+     * start the idle timer if there's nothing left to do.
+     */
+    void released(QueryData finished) {
+        final Entry entry = getEntry(finished.getConnection());
+        if (entry == null) {
+            return;
+        }
+        entry.inFlight--;
+        entry.queries.remove(finished);
+        while (!waiting.isEmpty()) {
+            QueryData qData = (QueryData)waiting.removeFirst();
+            if (!qData.isAnswered()) {
+                assign(entry, qData);
+                return;
+            }
+        }
+        if (entry.inFlight == 0) {
+            entry.idleTimeout = controller.getLoop().getTimer().addTimeout(
+                    System.currentTimeMillis() + idleTimeoutMillis, new Runnable() {
+                public void run() {
+                    entry.idleTimeout = null;
+                    if (entry.inFlight == 0) {
+                        entries.remove(entry);
+                        entry.connection.disconnect();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The connection has closed. Reconnect if it still has queries to send,
+     * backing off if it never managed to open. Queries which were sent on
+     * it and not answered are sent again when it reopens, or fail if they
+     * have already been sent again once.
+     */
+    void closed(Connection connection) {
+        final Entry entry = getEntry(connection);
+        if (entry == null) {
+            return;
+        }
+        if (entry.inFlight == 0) {
+            entries.remove(entry);
+            return;
+        }
+        if (entry.opened) {
+            List failed = new ArrayList();
+            for (Iterator it = entry.queries.iterator(); it.hasNext();) {
+                QueryData qData = (QueryData)it.next();
+                if (!qData.isSent() || qData.isAnswered()) {
+                    // Still in the connection's queue, or finished
+                    continue;
+                }
+                if (qData.isResent()) {
+                    failed.add(qData);
+                } else {
+                    qData.setResent(true);
+                    qData.setSent(false);
+                    connection.queueQuery(qData);
+                }
+            }
+            connect(entry);
+            // Failing a query releases its slot, which may assign a waiting
+            // query to this entry - so only once it is reconnecting
+            for (int i = 0; i < failed.size(); i++) {
+                controller.returnException(new IOException(
+                        "TCP connection closed before answering"),
+                        (QueryData)failed.get(i));
+            }
+            return;
+        }
+        int delay = MIN_RECONNECT_DELAY_MILLIS << Math.min(entry.failures, 16);
+        delay = Math.min(delay, MAX_RECONNECT_DELAY_MILLIS);
+        entry.failures++;
+        entry.reconnect = controller.getLoop().getTimer().addTimeout(
+                System.currentTimeMillis() + delay, new Runnable() {
+            public void run() {
+                entry.reconnect = null;
+                if (entries.contains(entry)) {
+                    connect(entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close all the connections, e.g. because the upstream has changed.
+     * Queries in flight on them will time out.
+     */
+    void closeAll() {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = (Entry)entries.get(i);
+            if (entry.idleTimeout != null) {
+                entry.idleTimeout.cancel();
+            }
+            if (entry.reconnect != null) {
+                entry.reconnect.cancel();
+            }
+            entry.connection.disconnect();
+        }
+        entries.clear();
+    }
+
+    public void setMaxConnections(int max) {
+        this.maxConnections = max;
+    }
+
+    public void setMaxQueriesPerConnection(int max) {
+        this.maxQueriesPerConnection = max;
+    }
+
+    public void setIdleTimeout(int millis) {
+        this.idleTimeoutMillis = millis;
+    }
+}
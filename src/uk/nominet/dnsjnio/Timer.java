@@ -16,142 +16,244 @@ limitations under the License.
 
 package uk.nominet.dnsjnio;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /**
- * This class handles the timeouts for the Transaction objects.
- * A new thread is started to handle all the timeouts for all the
- * Transaction objects.
- * A separate list is kept for single port transactions, and normal transactions.
+ * This class handles the timeouts for the transactions.
+ * Each SelectLoop owns one Timer, which is a hashed timing wheel.
+ * Timeouts are linked in to the wheel, fired and unlinked only on the
+ * loop's select thread. The loop uses getSelectTimeout() to work out how
+ * long it may block in select(), and calls expireTimeouts() each time round.
+ * Adding a timeout returns a Timeout handle, which the caller keeps so that
+ * the timeout can be cancelled without searching for it.
  */
 public class Timer {
-    // There has to be a better way than this!
-    private final static Map timeouts = Collections.synchronizedMap(new HashMap());
-    private final static Map singlePortTimeouts = Collections.synchronizedMap(new HashMap());
-    private static boolean threadStarted = false;
-    private final static Thread timerThread = new Thread("DnsTimer") {
-        public void run() {
-            while (true) {
-                try {
-                    sleep(100); // Poll 10 times a second
-                }
-                catch (InterruptedException e) {
-                    return;
-                }
-                long currentTime = System.currentTimeMillis();
-                List removeList = new LinkedList();
-                // Now go through and call any timeouts
-                synchronized (timeouts) {
-                    Set keys = timeouts.keySet();
-                    for (Iterator it = keys.iterator(); it.hasNext();) {
-                        Transaction t = (Transaction)(it.next());
-                        long endTime = ((Long)(timeouts.get(t))).longValue();
-                        if (endTime <= currentTime) {
-                            removeList.add(t);
-                        }
-                    }
-                    for (Iterator it = removeList.iterator(); it.hasNext();) {
-                        TimerListener t = (TimerListener)it.next();
-                        t.timedOut(null);
-                        timeouts.remove(t);
-                    }
-                }
-                removeList.clear();
-                synchronized (singlePortTimeouts) {
-                    Set keys = singlePortTimeouts.keySet();
-                    for (Iterator it = keys.iterator(); it.hasNext();) {
-                        ListenerAndData l = (ListenerAndData)(it.next());
-                        long endTime = ((Long)(singlePortTimeouts.get(l))).longValue();
-                        if (endTime <= currentTime) {
-                            removeList.add(l);
-                        }
-                    }
-                    for (Iterator it = removeList.iterator(); it.hasNext();) {
-                        ListenerAndData l = (ListenerAndData)it.next();
-                        l.getListener().timedOut(l.getqData());
-                        singlePortTimeouts.remove(l);
-                    }
-                }
+    /** The length of one tick of the wheel, in milliseconds */
+    static final int TICK_MILLIS = 10;
+    /** The number of buckets in the wheel - must be a power of two */
+    static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final SelectLoop loop;
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+    private long currentTick;
+    private int count = 0;
+    private final List expired = new ArrayList();
+
+    /**
+     * A handle on a timeout in the wheel.
+     */
+    public static class Timeout {
+        private final Timer timer;
+        private final TimerListener listener;
+        private final QueryData qData;
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private int bucket;
+        private boolean linked = false;
+        private boolean fired = false;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Timer timer, long endTime, TimerListener listener, QueryData qData, Runnable task) {
+            this.timer = timer;
+            this.listener = listener;
+            this.qData = qData;
+            this.task = task;
+            this.deadlineTick = (endTime + TICK_MILLIS - 1) / TICK_MILLIS;
+        }
+
+        /**
+         * Cancel the timeout. If called on the select thread, the timeout is
+         * unlinked straight away. Otherwise it is dropped when its bucket
+         * next comes round.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (timer.loop.isSelectThread()) {
+                timer.unlink(this);
             }
         }
-    };
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    Timer(SelectLoop loop) {
+        this.loop = loop;
+        currentTick = System.currentTimeMillis() / TICK_MILLIS;
+    }
+
+    /**
+     * Add a timeout callback.
+     * @param endTime the absolute timeout time in milliseconds.
+     * @param listener the TimerListener to be called back.
+     * @param qData the QueryData to pass back to the listener (may be null)
+     * @return the handle to use to cancel the timeout
+     */
+    public Timeout addTimeout(long endTime, TimerListener listener, QueryData qData) {
+        return add(new Timeout(this, endTime, listener, qData, null));
+    }
 
     /**
-     * Add a timeout callback for the specified Transaction.
-     * @param timeout the absolute timeout time in milliseconds.
-     * @param t the Transaction to be called back.
+     * Add a task to be run on the select thread at the given time.
+     * @param endTime the absolute time in milliseconds.
+     * @param task the task to run.
+     * @return the handle to use to cancel the task
      */
-    public final static void addTimeout(long timeout, TimerListener t, QueryData qData) {
-        ListenerAndData l = new ListenerAndData();
-        l.setListener(t);
-        l.setqData(qData);
-        checkTimerStarted();
-        synchronized (singlePortTimeouts) {
-            singlePortTimeouts.put(l, new Long(timeout));
+    public Timeout addTimeout(long endTime, Runnable task) {
+        return add(new Timeout(this, endTime, null, null, task));
+    }
+
+    private Timeout add(final Timeout timeout) {
+        if (loop.isSelectThread()) {
+            link(timeout);
+        } else {
+            loop.invoke(new Runnable() {
+                public void run() {
+                    link(timeout);
+                }
+            });
+        }
+        return timeout;
+    }
+
+    private void link(Timeout timeout) {
+        if (timeout.cancelled || timeout.linked) {
+            return;
+        }
+        // Anything already due goes in the next bucket to be processed
+        long tick = Math.max(timeout.deadlineTick, currentTick + 1);
+        int bucket = (int)(tick & MASK);
+        timeout.bucket = bucket;
+        timeout.next = wheel[bucket];
+        if (wheel[bucket] != null) {
+            wheel[bucket].prev = timeout;
         }
+        wheel[bucket] = timeout;
+        timeout.linked = true;
+        count++;
     }
 
-    private static synchronized void checkTimerStarted() {
-        if (!threadStarted) {
-            threadStarted = true;
-            timerThread.setDaemon(true);
-            timerThread.start();
+    private void unlink(Timeout timeout) {
+        if (timeout.linked) {
+            removeFromBucket(timeout);
         }
     }
 
-    public final static void addTimeout(long timeout, TimerListener t) {
-        checkTimerStarted();
-        synchronized (timeouts) {
-            timeouts.put(t, new Long(timeout));
+    /**
+     * Work out how long the select loop may block for.
+     * @return the time in milliseconds until the next non-empty bucket is due,
+     * or 0 if there are no timeouts outstanding (i.e. block until woken)
+     */
+    long getSelectTimeout() {
+        if (count == 0) {
+            return 0;
+        }
+        long tick = currentTick + 1;
+        for (int i = 0; i < WHEEL_SIZE; i++, tick++) {
+            if (wheel[(int)(tick & MASK)] != null) {
+                break;
+            }
         }
+        long wait = (tick * TICK_MILLIS) - System.currentTimeMillis();
+        return Math.max(wait, 1);
     }
 
     /**
-     * Cancel the timeout callback for the specified Transaction
-     * @param t
+     * Fire all the timeouts which are now due.
+     * Called by the select loop, on the select thread.
      */
-    public final static void cancelTimeout(TimerListener t, QueryData qData) {
-        // Need to search through list to find entry for qData.getId().
-        ListenerAndData toRemove = null;
-        Set set = null;
-        synchronized (singlePortTimeouts) {
-            set = singlePortTimeouts.keySet();
-            for (Iterator it = set.iterator(); it.hasNext();) {
-                ListenerAndData x = (ListenerAndData)it.next();
-                if (x.getListener() == t) {
-                    if (x.getqData().getId().equals(qData.getId())) {
-                        if (x.getqData().getQuery().getHeader().getID()==(qData.getQuery().getHeader().getID())) {
-                            toRemove = x;
-                            break;
+    void expireTimeouts() {
+        long nowTick = System.currentTimeMillis() / TICK_MILLIS;
+        if (nowTick <= currentTick) {
+            return;
+        }
+        // No need to go round the wheel more than once
+        long ticks = Math.min(nowTick - currentTick, WHEEL_SIZE);
+        long tick = currentTick + 1;
+        for (long i = 0; i < ticks && count > 0; i++, tick++) {
+            Timeout timeout = wheel[(int)(tick & MASK)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled) {
+                    removeFromBucket(timeout);
+                } else if (timeout.deadlineTick <= nowTick) {
+                    removeFromBucket(timeout);
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        currentTick = nowTick;
+        // Only call back once the wheel is consistent, as the listeners
+        // may well add or cancel other timeouts. One listener failing must
+        // not stop the rest being called back, or see any called twice.
+        try {
+            for (int i = 0; i < expired.size(); i++) {
+                Timeout timeout = (Timeout)expired.get(i);
+                if (!timeout.cancelled && !timeout.fired) {
+                    timeout.fired = true;
+                    try {
+                        if (timeout.task != null) {
+                            timeout.task.run();
+                        } else {
+                            timeout.listener.timedOut(timeout.qData);
                         }
+                    } catch (Throwable t) {
+                        System.out.println("Caught exception in timeout callback\r\n" + t);
                     }
                 }
             }
-            singlePortTimeouts.remove(toRemove);
+        } finally {
+            expired.clear();
+        }
+    }
+
+    private void removeFromBucket(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
         }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.linked = false;
+        count--;
     }
 
-    public final static void cancelTimeout(TimerListener t) {
-        synchronized (timeouts) {
-            timeouts.remove(t);
+    private void clear() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            Timeout timeout = wheel[i];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+                timeout.linked = false;
+                timeout = next;
+            }
+            wheel[i] = null;
         }
+        count = 0;
     }
 
     /**
-     * Cancel all timeout callbacks.
+     * Cancel all timeout callbacks, on all the select loops.
      */
     public final static void reset() {
-        synchronized (timeouts) {
-            timeouts.clear();
-        }
-        synchronized (singlePortTimeouts) {
-            singlePortTimeouts.clear();
+        for (int i = 0; i < DnsController.getNumLoops(); i++) {
+            final Timer timer = DnsController.getLoop(i).getTimer();
+            DnsController.getLoop(i).invoke(new Runnable() {
+                public void run() {
+                    timer.clear();
+                }
+            });
         }
     }
 }
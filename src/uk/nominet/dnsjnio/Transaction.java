@@ -38,6 +38,7 @@ import org.xbill.DNS.TSIG;
 public class Transaction extends AbstractTransaction {
     Connection connection;
     Message query;
+    private byte[] queryWire = null;
     Object id;
     boolean responded = false;
     TSIG tsig;
@@ -46,10 +47,15 @@ public class Transaction extends AbstractTransaction {
     protected InetSocketAddress remoteAddr;
     protected InetSocketAddress localAddr;
     private long endTime;
+    private Timer.Timeout timeout;
     private ResponseQueue responseQueue;
     private ResolverListener listener = null;
     protected int udpSize;
+    private UDPSocketPool udpSocketPool = null;
+    private SinglePortControllerGroup tcpControllers = null;
     private boolean answered = false;
+    private boolean rawResponse = false;
+    private QueryCompletionListener completionListener = null;
     private final Object lock = new Object();
 
     /**
@@ -83,6 +89,15 @@ public class Transaction extends AbstractTransaction {
         startConnect();
     }
 
+    /**
+     * Set the wire format of the query, if it has already been encoded.
+     * The query Message may then be null, unless it is to be signed with TSIG.
+     * @param queryWire the wire format of the query
+     */
+    public void setQueryWire(byte[] queryWire) {
+        this.queryWire = queryWire;
+    }
+
     /**
      * Send a query using a ResolverListener. This kicks off the whole process.
      * @param query
@@ -103,26 +118,56 @@ public class Transaction extends AbstractTransaction {
      * ResponseQueue a callback at the timeout time
      */
     private void startTimer() {
-        Timer.addTimeout(endTime, this);
+        timeout = loop.getTimer().addTimeout(endTime, this, null);
     }
 
     /**
      * Instantiate a new Connection, and start the connect process.
+     * UDP queries go over a shared socket instead, if a UDPSocketPool has been set.
      */
     protected void startConnect() {
+        if (!tcp && udpSocketPool != null) {
+            if (loop.isSelectThread()) {
+                sendPooledQuery();
+            } else {
+                loop.invoke(new Runnable() {
+                    public void run() {
+                        sendPooledQuery();
+                    }
+                });
+            }
+            return;
+        }
         if (tcp) {
-            connection = new TCPConnection(this);
+            connection = new TCPConnection(this, Connection.BUFFER_SIZE, loop);
         }
         else {
-            connection = new UDPConnection(this, udpSize);
+            connection = new UDPConnection(this, udpSize, loop);
         }
         connection.connect(remoteAddr, localAddr);
     }
 
+    /**
+     * Send the query over one of the pool's shared sockets.
+     * If none of them can take it, fall back to a socket of our own.
+     */
+    private void sendPooledQuery() {
+        connection = udpSocketPool.sendQuery(this, loop, remoteAddr, getHeaderId(), getQueryWire());
+        if (connection == null) {
+            connection = new UDPConnection(this, udpSize, loop);
+            connection.connect(remoteAddr, localAddr);
+        }
+    }
+
     /**
      * Disconnect.
      */
     protected boolean disconnect(QueryData ignoreMe) {
+        if (connection instanceof PooledUDPConnection) {
+            // Never close the shared socket - just stop listening for the response
+            ((PooledUDPConnection)connection).unregister(this, remoteAddr, getHeaderId());
+            return true;
+        }
         return disconnect(connection);
     }
 
@@ -131,7 +176,7 @@ public class Transaction extends AbstractTransaction {
      * We can now send the data.
      */
     public void readyToSend(Connection ignoreMe) {
-        sendQuery(connection, query);
+        sendQuery(connection, getQueryWire());
     }
 
     /**
@@ -142,36 +187,94 @@ public class Transaction extends AbstractTransaction {
      */
     public void dataAvailable(byte[] data, Connection ignoreMe) {
         // Now get the data, and send it back to the listener.
+        // Drop anything which isn't the answer to our question before
+        // decoding it, and keep listening for the real one
+        if (!WireHeader.hasHeader(data) ||
+                (WireHeader.getId(data) != getHeaderId()) ||
+                !WireHeader.matchesQuery(data, getQueryWire())) {
+            return;
+        }
         try {
-            disconnect(ignoreMe);
-            Message message = NonblockingResolver.parseMessage(data);
-            NonblockingResolver.verifyTSIG(query, message, data, tsig);
+            disconnect((QueryData)null);
+            // Raw responses are left for the client to decode - unless they
+            // have to be decoded here to check the TSIG
+            Message message = null;
+            if (!rawResponse || (tsig != null)) {
+                message = NonblockingResolver.parseMessage(data);
+                NonblockingResolver.verifyTSIG(query, message, data, tsig);
+            }
             // Now check that we got the whole message, if we're asked to do so
             if (!tcp && !ignoreTruncation &&
-                    message.getHeader().getFlag(Flags.TC))
+                    WireHeader.getFlag(data, Flags.TC))
             {
                 // Redo the query, but use tcp this time.
+                if ((tcpControllers != null) && sendOverTcpPool()) {
+                    return;
+                }
                 tcp = true;
                 // Now start again with a TCP connection
                 startConnect();
                 return;
             }
-            if (query.getHeader().getID() != message.getHeader().getID()) {
-//                System.out.println("Query wrong id! Expected " + query.getHeader().getID() + " but got " + message.getHeader().getID());
-                return;
-            }
-            returnResponse(message);
+            returnResponse(message, data);
         }
         catch (IOException e) {
             returnException(e, null);
         }
     }
 
+    private byte[] getQueryWire() {
+        if (queryWire == null) {
+            queryWire = query.toWire(Message.MAXLENGTH);
+        }
+        return queryWire;
+    }
+
+    private int getHeaderId() {
+        return WireHeader.getId(getQueryWire());
+    }
+
+    /**
+     * Hand the query over to a single port controller, to be sent over its
+     * persistent TCP connections.
+     * @return false if no controller could take the query's header ID
+     */
+    private boolean sendOverTcpPool() {
+        int headerId = getHeaderId();
+        SinglePortTransactionController controller = tcpControllers.acquireHeaderId(headerId);
+        if (controller == null) {
+            return false;
+        }
+        synchronized (lock) {
+            if (answered) {
+                controller.releaseHeaderId(headerId);
+                return true;
+            }
+            answered = true;
+        }
+        cancelTimer();
+        QueryData qData = new QueryData();
+        qData.setTcp(true);
+        qData.setIgnoreTruncation(ignoreTruncation);
+        qData.setTsig(tsig);
+        qData.setQuery(query);
+        qData.setQueryWire(getQueryWire());
+        qData.setRawResponse(rawResponse);
+        qData.setCompletionListener(completionListener);
+        if (listener != null) {
+            controller.sendQuery(qData, id, listener, endTime);
+        } else {
+            controller.sendQuery(qData, id, responseQueue, endTime);
+        }
+        return true;
+    }
+
     /**
      * Return the response to the listener
-     * @param message the response
+     * @param message the response, or null if it is to be decoded lazily
+     * @param data the wire format of the response
      */
-    private void returnResponse(Message message) {
+    private void returnResponse(Message message, byte[] data) {
     	boolean needToRespond = false;
     	synchronized (lock) {
     	if (!answered) {
@@ -182,7 +285,8 @@ public class Transaction extends AbstractTransaction {
     	if (needToRespond) {
             // Stop the timer!
             cancelTimer();
-            returnResponse(listener, responseQueue, message, id);    		
+            queryCompleted(completionListener, null);
+            returnResponse(listener, responseQueue, message, rawResponse ? data : null, id);
     	}
     }
 
@@ -200,6 +304,7 @@ public class Transaction extends AbstractTransaction {
     	if (needToRespond) {
             // Stop the timer!
             cancelTimer();
+            queryCompleted(completionListener, e);
             returnException(listener, responseQueue, e, id);
     	}
     }
@@ -208,11 +313,44 @@ public class Transaction extends AbstractTransaction {
      * Cancel the timeout callback.
      */
     private void cancelTimer() {
-        Timer.cancelTimeout(this);
+        if (timeout != null) {
+            timeout.cancel();
+        }
         responded = true;
     }
 
     public void setUdpSize(int udpSize) {
         this.udpSize = udpSize;
     }
+
+    /**
+     * @param rawResponse true to return the response's wire data, and only
+     * decode it when the client asks for the Message
+     */
+    public void setRawResponse(boolean rawResponse) {
+        this.rawResponse = rawResponse;
+    }
+
+    /**
+     * @param completionListener told when the query completes, or null
+     */
+    public void setCompletionListener(QueryCompletionListener completionListener) {
+        this.completionListener = completionListener;
+    }
+
+    /**
+     * Send UDP queries over the shared sockets of the given pool, rather than a new socket per query
+     * @param udpSocketPool the pool to use, or null to use a new socket per query
+     */
+    public void setUdpSocketPool(UDPSocketPool udpSocketPool) {
+        this.udpSocketPool = udpSocketPool;
+    }
+
+    /**
+     * Retry truncated UDP responses over the persistent TCP connections of the given controllers
+     * @param tcpControllers the controllers to use, or null to open a new TCP connection
+     */
+    public void setTcpControllers(SinglePortControllerGroup tcpControllers) {
+        this.tcpControllers = tcpControllers;
+    }
 }
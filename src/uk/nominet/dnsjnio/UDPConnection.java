@@ -21,8 +21,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 
-import org.xbill.DNS.Message;
-
 /**
  * This class implements the UDP specific methods for the
  * Connection superclass.
@@ -33,6 +31,10 @@ public class UDPConnection extends Connection {
         super(listener, udpSize);
     }
 
+    public UDPConnection(ConnectionListener listener, int udpSize, SelectLoop loop) {
+        super(listener, udpSize, loop);
+    }
+
     protected void connect() {
         try {
             DatagramChannel sch = DatagramChannel.open();
@@ -55,7 +57,7 @@ public class UDPConnection extends Connection {
             	sch.configureBlocking(false);
               }
             }
-            sk = sch.register(DnsController.getSelector(),0);
+            sk = sch.register(loop.getSelector(),0);
             sch.connect(remoteAddress);
             attach(sk);
         } catch(Exception e) {
@@ -95,34 +97,37 @@ public class UDPConnection extends Connection {
     	// from the peer it is connected with.
     	
         DatagramChannel sc = (DatagramChannel)sk.channel();
-        try {
-            readFromChannel(sc);
-        }
-        catch (NullPointerException e) {
+        if (!sc.isOpen() || getState() == State.CLOSED) {
             return;
         }
-
-        // It's possible that we received more than one DNS packet.
-        // Let's split them out, and send each to the client.
-        while (recvCount > 0) {
-            if (recvBytes != null) {
-                byte[] packet = new byte[recvCount];
-                System.arraycopy(recvBytes, 0, packet, 0, recvCount);
-                try {
-                	// Get the first packet in the buffer
-                    Message m = new Message(packet);
-                    if (m.numBytes() < recvCount) {
-                        packet = new byte[m.numBytes()];
-                        System.arraycopy(recvBytes, 0, packet, 0, m.numBytes());
-                    }
-                    sendToUser(packet); // try to send to user
-                    // Now clear the buffer
-                    clearRecvBytes(packet.length);
-                } catch (IOException e) {
-                    break;
-                }
+        // Read the datagram through a buffer borrowed from the loop, so the
+        // connection doesn't need one of its own
+        BufferPool pool = loop.getBufferPool();
+        ByteBuffer inputBuffer = pool.acquire();
+        byte[] packet;
+        try {
+            int len;
+            try {
+                len = sc.read(inputBuffer);
+            } catch (IOException e) {
+                len = -1;
             }
+            if (len < 0) {
+                closeComplete();
+                return;
+            }
+            if (len == 0) {
+                return;
+            }
+            inputBuffer.flip();
+            packet = new byte[len];
+            inputBuffer.get(packet);
+        } finally {
+            pool.release(inputBuffer);
         }
+
+        // The datagram is the whole message - the listener parses it
+        sendToUser(packet);
     }
 
     /**
@@ -0,0 +1,155 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pool of long-lived, unconnected UDP sockets on one local address.
+ * Instead of opening (and binding, and registering, and closing) a new
+ * socket for every UDP query, a Transaction can send its query over one
+ * of the pool's sockets. Responses are matched back to the Transaction
+ * by server address, server port and DNS header ID.
+ * Each select loop has its own set of sockets, which are only used on that
+ * loop's select thread. Each socket is bound to a random port, and is
+ * retired (and replaced by a socket on a new random port) once it has been
+ * in use for the rotation interval, so that source port randomisation is kept.
+ */
+public class UDPSocketPool {
+    /** The default number of sockets per select loop */
+    public static final int DEFAULT_SOCKETS_PER_LOOP = 8;
+    /** The default time (in milliseconds) a socket is used for before it is replaced */
+    public static final long DEFAULT_ROTATION_MILLIS = 60 * 1000;
+
+    private static final Map pools = new HashMap();
+    private static Random random = new Random();
+
+    private final InetAddress localAddress;
+    private final Map socketsByLoop = new ConcurrentHashMap();
+    private volatile int socketsPerLoop = DEFAULT_SOCKETS_PER_LOOP;
+    private volatile long rotationMillis = DEFAULT_ROTATION_MILLIS;
+
+    /**
+     * Get the pool for the given local address, creating it if necessary.
+     * @param localAddress the local address to bind the sockets to
+     * @return the pool for that address
+     */
+    public static UDPSocketPool getPool(InetAddress localAddress) {
+        synchronized (pools) {
+            UDPSocketPool pool = (UDPSocketPool)pools.get(localAddress);
+            if (pool == null) {
+                pool = new UDPSocketPool(localAddress);
+                pools.put(localAddress, pool);
+            }
+            return pool;
+        }
+    }
+
+    private UDPSocketPool(InetAddress localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    public InetAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Set the number of sockets each select loop keeps open.
+     * Only affects loops which have not yet used the pool.
+     */
+    public void setSocketsPerLoop(int socketsPerLoop) {
+        if (socketsPerLoop < 1) {
+            throw new IllegalArgumentException("Need at least one socket per loop");
+        }
+        this.socketsPerLoop = socketsPerLoop;
+    }
+
+    public int getSocketsPerLoop() {
+        return socketsPerLoop;
+    }
+
+    /**
+     * Set how long (in milliseconds) a socket is used for before it is
+     * replaced by a socket on a new random port.
+     */
+    public void setRotationMillis(long rotationMillis) {
+        this.rotationMillis = rotationMillis;
+    }
+
+    public long getRotationMillis() {
+        return rotationMillis;
+    }
+
+    /**
+     * Send a query over one of the pool's sockets for the given loop.
+     * Must be called on the loop's select thread.
+     * @param l the listener to pass the response to
+     * @param loop the select loop the listener runs on
+     * @param remote the server to send the query to
+     * @param id the header ID of the query
+     * @param data the query
+     * @return the socket used, or null if no socket could take the query
+     * (i.e. that header ID is already outstanding to that server on all of them)
+     */
+    PooledUDPConnection sendQuery(ConnectionListener l, SelectLoop loop, InetSocketAddress remote, int id, byte[] data) {
+        PooledUDPConnection[] sockets = (PooledUDPConnection[])socketsByLoop.get(loop);
+        if (sockets == null) {
+            sockets = new PooledUDPConnection[socketsPerLoop];
+            socketsByLoop.put(loop, sockets);
+        }
+        int start = random.nextInt(sockets.length);
+        for (int i = 0; i < sockets.length; i++) {
+            int index = (start + i) % sockets.length;
+            PooledUDPConnection socket = sockets[index];
+            if (socket == null || !socket.isUsable(rotationMillis)) {
+                if (socket != null) {
+                    socket.retire();
+                }
+                socket = new PooledUDPConnection(this, loop);
+                sockets[index] = socket;
+                socket.open(localAddress);
+                if (socket.getState() != Connection.State.OPENED) {
+                    sockets[index] = null;
+                    continue;
+                }
+            }
+            if (socket.sendQuery(l, remote, id, data)) {
+                return socket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called by a socket once it has been closed.
+     */
+    void closed(PooledUDPConnection socket) {
+        PooledUDPConnection[] sockets = (PooledUDPConnection[])socketsByLoop.get(socket.getLoop());
+        if (sockets != null) {
+            for (int i = 0; i < sockets.length; i++) {
+                if (sockets[i] == socket) {
+                    sockets[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Header;
+import org.xbill.DNS.Type;
+
+/**
+ * Reads the fields needed to match a response to its query straight from
+ * the wire format, without building a Message.
+ * This lets the transactions throw away late, unexpected or spoofed packets
+ * before paying for a full decode. Nothing here allocates.
+ */
+public class WireHeader {
+    private static final int QDCOUNT_OFFSET = 4;
+    private static final int ANCOUNT_OFFSET = 6;
+    private static final int NSCOUNT_OFFSET = 8;
+    private static final int ARCOUNT_OFFSET = 10;
+    private static final int COMPRESSION_POINTER = 0xC0;
+
+    private WireHeader() {
+    }
+
+    /**
+     * @return true if the packet is at least as long as a DNS header
+     */
+    public static boolean hasHeader(byte[] wire) {
+        return (wire != null) && (wire.length >= Header.LENGTH);
+    }
+
+    public static int getId(byte[] wire) {
+        return getShort(wire, 0);
+    }
+
+    /**
+     * Set the header ID, in place.
+     */
+    public static void setId(byte[] wire, int id) {
+        wire[0] = (byte)(id >>> 8);
+        wire[1] = (byte)id;
+    }
+
+    /**
+     * @return the 16 bits of flags, opcode and rcode
+     */
+    public static int getFlags(byte[] wire) {
+        return getShort(wire, 2);
+    }
+
+    /**
+     * @param bit one of the org.xbill.DNS.Flags constants
+     */
+    public static boolean getFlag(byte[] wire, int bit) {
+        return (getFlags(wire) & (1 << (15 - bit))) != 0;
+    }
+
+    public static boolean isResponse(byte[] wire) {
+        return getFlag(wire, Flags.QR);
+    }
+
+    public static int getRcode(byte[] wire) {
+        return getFlags(wire) & 0xF;
+    }
+
+    public static int getQuestionCount(byte[] wire) {
+        return getShort(wire, QDCOUNT_OFFSET);
+    }
+
+    /**
+     * Find the UDP payload size advertised by the OPT record in the
+     * additional section, by skipping over the records before it.
+     * @return the payload size, or 0 if there is no OPT record, or the
+     * message is malformed
+     */
+    public static int getUdpPayloadSize(byte[] wire) {
+        if (!hasHeader(wire)) {
+            return 0;
+        }
+        int pos = Header.LENGTH;
+        for (int i = getQuestionCount(wire); i > 0; i--) {
+            pos = skipName(wire, pos);
+            if (pos < 0) {
+                return 0;
+            }
+            pos += 4;
+        }
+        int additionalStart = getShort(wire, ANCOUNT_OFFSET) + getShort(wire, NSCOUNT_OFFSET);
+        int numRecords = additionalStart + getShort(wire, ARCOUNT_OFFSET);
+        for (int i = 0; i < numRecords; i++) {
+            pos = skipName(wire, pos);
+            // Type, class, TTL and rdlength
+            if ((pos < 0) || (pos + 10 > wire.length)) {
+                return 0;
+            }
+            if ((i >= additionalStart) && (getShort(wire, pos) == Type.OPT)) {
+                // The payload size is held in the class field
+                return getShort(wire, pos + 2);
+            }
+            pos += 10 + getShort(wire, pos + 8);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the offset just after the name at pos, or -1 if the name
+     * runs off the end of the message
+     */
+    private static int skipName(byte[] wire, int pos) {
+        while (pos < wire.length) {
+            int len = wire[pos] & 0xFF;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if (len >= COMPRESSION_POINTER) {
+                return pos + 2;
+            }
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    private static int getShort(byte[] wire, int pos) {
+        return ((wire[pos] & 0xFF) << 8) | (wire[pos + 1] & 0xFF);
+    }
+
+    /**
+     * Check that the response is for the query: its first question must
+     * match the query's (names compared without regard to case).
+     * A response with no question section is let through, as some servers
+     * leave it out of error responses. As with the old full decode, the QR
+     * bit is not checked.
+     * @param response the wire format response
+     * @param query the wire format query
+     * @return false if the response is malformed or for a different question
+     */
+    public static boolean matchesQuery(byte[] response, byte[] query) {
+        if (!hasHeader(response) || !hasHeader(query)) {
+            return false;
+        }
+        if ((getQuestionCount(response) == 0) || (getQuestionCount(query) == 0)) {
+            return true;
+        }
+        int r = Header.LENGTH;
+        int q = Header.LENGTH;
+        // The first name in a message can't be compressed, so the labels
+        // can be compared byte for byte
+        while (true) {
+            if ((r >= response.length) || (q >= query.length)) {
+                return false;
+            }
+            int len = response[r] & 0xFF;
+            if ((len != (query[q] & 0xFF)) || (len >= COMPRESSION_POINTER)) {
+                return false;
+            }
+            r++;
+            q++;
+            if (len == 0) {
+                break;
+            }
+            if ((r + len > response.length) || (q + len > query.length)) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (toLower(response[r + i]) != toLower(query[q + i])) {
+                    return false;
+                }
+            }
+            r += len;
+            q += len;
+        }
+        // Type and class
+        if ((r + 4 > response.length) || (q + 4 > query.length)) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (response[r + i] != query[q + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        int c = b & 0xFF;
+        if ((c >= 'A') && (c <= 'Z')) {
+            c += 'a' - 'A';
+        }
+        return c;
+    }
+}
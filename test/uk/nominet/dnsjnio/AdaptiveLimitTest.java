@@ -0,0 +1,150 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check that an AdaptiveLimit follows the round trip times and timeouts
+ * it is given, and that a resolver runs under one
+ */
+public class AdaptiveLimitTest extends ServerTestCase {
+	final static int NUM_REQUESTS = 100;
+
+	public void testGrowsWhileRttIsSteady() {
+		AdaptiveLimit limit = new AdaptiveLimit(10);
+		for (int i = 0; i < 200; i++) {
+			limit.update(50, false, limit.getLimit());
+		}
+		assertTrue("Limit did not grow : " + limit.getLimit(),
+				limit.getLimit() > 10);
+		assertEquals(50, limit.getMinRtt());
+	}
+
+	public void testDoesNotGrowWhenUnused() {
+		AdaptiveLimit limit = new AdaptiveLimit(10);
+		for (int i = 0; i < 200; i++) {
+			limit.update(50, false, 1);
+		}
+		assertEquals(10, limit.getLimit());
+	}
+
+	public void testShrinksAsRttRises() {
+		AdaptiveLimit limit = new AdaptiveLimit(100);
+		limit.update(10, false, 100);
+		for (int i = 0; i < 200; i++) {
+			limit.update(100, false, 100);
+		}
+		assertTrue("Limit did not shrink : " + limit.getLimit(),
+				limit.getLimit() < 100);
+	}
+
+	public void testBacksOffOncePerRoundTrip() {
+		AdaptiveLimit limit = new AdaptiveLimit(100);
+		limit.setBackoffRatio(0.5);
+		// A round trip time long enough that the timeouts all fall in it
+		limit.update(60000, false, 100);
+		int before = limit.getLimit();
+		for (int i = 0; i < 10; i++) {
+			limit.update(-1, true, 100);
+		}
+		assertEquals(before / 2, limit.getLimit());
+		assertEquals(10, limit.getTimeouts());
+		// Failures without a round trip time change nothing
+		limit.update(-1, false, 100);
+		assertEquals(before / 2, limit.getLimit());
+	}
+
+	public void testLimitRange() {
+		AdaptiveLimit limit = new AdaptiveLimit(10);
+		limit.setLimitRange(5, 8);
+		assertEquals(8, limit.getLimit());
+		limit.setBackoffRatio(0.1);
+		limit.update(-1, true, 8);
+		assertEquals(5, limit.getLimit());
+		try {
+			limit.setLimitRange(0, 8);
+			fail("Accepted a zero limit");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testLimiterFollowsLimit() {
+		InFlightLimiter limiter = new InFlightLimiter();
+		AdaptiveLimit limit = new AdaptiveLimit(4);
+		limit.setBackoffRatio(0.5);
+		limiter.setAdaptiveLimit(limit);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(limiter.submit(new InFlightLimiter.Task() {
+				public void admitted(boolean queued) {
+				}
+
+				public void failed(RuntimeException e) {
+				}
+			}, true));
+		}
+		assertEquals(0, limiter.getQueueDepth());
+		assertTrue(limiter.submit(new InFlightLimiter.Task() {
+			public void admitted(boolean queued) {
+			}
+
+			public void failed(RuntimeException e) {
+			}
+		}, true));
+		assertEquals(1, limiter.getQueueDepth());
+		// The timeout halves the limit, so the queued task must still wait
+		limiter.release(-1, true);
+		assertEquals(2, limit.getLimit());
+		assertEquals(1, limiter.getQueueDepth());
+		limiter.release(-1, false);
+		limiter.release(-1, false);
+		assertEquals(0, limiter.getQueueDepth());
+	}
+
+	public void testResolverWithAdaptiveLimit() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setAdaptiveLimit(true);
+		InFlightLimiter limiter = resolver.getInFlightLimiter();
+		AdaptiveLimit limit = limiter.getAdaptiveLimit();
+		assertNotNull(limit);
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			Name name = Name.fromString("example" + i + ".net", Name.root);
+			Record question = Record.newRecord(name, Type.A, DClass.ANY);
+			resolver.sendAsync(Message.newQuery(question), queue);
+		}
+		int bad = 0;
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			Response response = queue.poll(TIMEOUT * 3, TimeUnit.SECONDS);
+			assertNotNull("Queries did not complete", response);
+			if (response.isException()) {
+				bad++;
+			}
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + NUM_REQUESTS + ")",
+				bad < (NUM_REQUESTS * 0.1));
+		assertTrue(limiter.getPeakQueueDepth() > 0);
+		assertTrue(limit.getSmoothedRtt() > 0);
+		assertEquals(0, limiter.getInFlight());
+		resolver.setAdaptiveLimit(false);
+		assertNull(limiter.getAdaptiveLimit());
+	}
+}
@@ -0,0 +1,123 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check that batches of queries are sent, and that the select loop tasks
+ * of a batch are held back until the batch is complete
+ */
+public class BatchTest extends ServerTestCase {
+	final static int NUM_REQUESTS = 100;
+
+	public void testBatchedTasks() throws Exception {
+		SelectLoop loop = DnsController.getLoop(0);
+		final List ran = new ArrayList();
+		final CountDownLatch done = new CountDownLatch(3);
+		SelectLoop.beginBatch();
+		SelectLoop.beginBatch();
+		for (int i = 0; i < 3; i++) {
+			final Integer task = new Integer(i);
+			loop.invoke(new Runnable() {
+				public void run() {
+					synchronized (ran) {
+						ran.add(task);
+					}
+					done.countDown();
+				}
+			});
+		}
+		SelectLoop.endBatch();
+		// Still held back by the outer batch
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		SelectLoop.endBatch();
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+		synchronized (ran) {
+			for (int i = 0; i < 3; i++) {
+				assertEquals(new Integer(i), ran.get(i));
+			}
+		}
+	}
+
+	public void testSendBatch() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		runBatch(resolver);
+		resolver.setTCP(true);
+		runBatch(resolver);
+		resolver.setTCP(false);
+		resolver.setSingleUdpPort(true);
+		runBatch(resolver);
+	}
+
+	private void runBatch(NonblockingResolver resolver) throws Exception {
+		ResponseQueue queue = new ResponseQueue();
+		List ids = resolver.sendBatch(getQueries(NUM_REQUESTS), queue);
+		assertEquals(NUM_REQUESTS, ids.size());
+		Set outstanding = new HashSet(ids);
+		assertEquals(NUM_REQUESTS, outstanding.size());
+		int bad = 0;
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			Response response = queue.poll(TIMEOUT * 2, TimeUnit.SECONDS);
+			assertNotNull("Batch did not complete", response);
+			assertTrue(outstanding.remove(response.getId()));
+			if (response.isException()) {
+				bad++;
+			}
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + NUM_REQUESTS + ")",
+				bad < (NUM_REQUESTS * 0.1));
+	}
+
+	public void testSendBatchFutures() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		checkFutures(resolver.sendBatch(getQueries(NUM_REQUESTS)));
+
+		ExtendedNonblockingResolver eres = ExtendedNonblockingResolver
+				.newInstance(new NonblockingResolver[] { resolver });
+		checkFutures(eres.sendBatch(getQueries(NUM_REQUESTS)));
+	}
+
+	private void checkFutures(List<CompletableFuture<Message>> futures) throws Exception {
+		assertEquals(NUM_REQUESTS, futures.size());
+		int bad = 0;
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			try {
+				Message response = futures.get(i).get(TIMEOUT * 2, TimeUnit.SECONDS);
+				assertEquals(Name.fromString("example" + i + ".net."),
+						response.getQuestion().getName());
+			} catch (ExecutionException e) {
+				bad++;
+			}
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + NUM_REQUESTS + ")",
+				bad < (NUM_REQUESTS * 0.1));
+	}
+}
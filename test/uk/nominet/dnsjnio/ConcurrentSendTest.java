@@ -0,0 +1,259 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Run one blocking send() per virtual thread (Java 21 or later), and check
+ * that the threads park, rather than pin their carriers, while they wait
+ * for the answers.
+ * <p>
+ * Before any virtual thread is started, the scheduler is capped at one
+ * carrier thread per processor, so that it can't add carriers to make up
+ * for pinned ones. The server holds back its answers until no query has
+ * arrived for a while, and the test counts the lookup threads which are
+ * waiting inside send() at the same time. A send() which pinned its carrier
+ * would let no more than one thread per processor wait at once.
+ * <p>
+ * Without virtual threads the test is reported as skipped, and checks
+ * nothing. Set the "dnsjnio.test.virtual" property to true to fail instead.
+ * The number of lookups defaults to 200, and is set with the
+ * "dnsjnio.test.lookups" property - e.g. 10000 for a large run, with
+ * -Djdk.tracePinnedThreads=full to trace any pinning. Up to MAX_STRICT_LOOKUPS
+ * every lookup must succeed. Beyond that the socket buffers may drop some
+ * queries or answers, so lookups may time out - but nothing else may go
+ * wrong.
+ */
+public class ConcurrentSendTest extends ServerTestCase {
+	final static int TIMEOUT = 20;
+
+	final static int NUM_LOOKUPS = Integer.getInteger("dnsjnio.test.lookups", 200).intValue();
+
+	final static boolean REQUIRE_VIRTUAL = Boolean.getBoolean("dnsjnio.test.virtual");
+
+	final static int MAX_STRICT_LOOKUPS = 256;
+
+	// How long the server waits for more queries before it answers
+	final static int HOLD_MILLIS = 300;
+
+	static {
+		// The scheduler reads these when the first virtual thread starts
+		String processors = String.valueOf(Runtime.getRuntime().availableProcessors());
+		if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+			System.setProperty("jdk.virtualThreadScheduler.parallelism", processors);
+		}
+		if (System.getProperty("jdk.virtualThreadScheduler.maxPoolSize") == null) {
+			System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", processors);
+		}
+	}
+
+	private static boolean isVirtual(Thread thread) {
+		try {
+			Method m = Thread.class.getMethod("isVirtual", new Class[0]);
+			return ((Boolean) m.invoke(thread, new Object[0])).booleanValue();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return an executor which runs each task on a new virtual thread, or
+	 *         null if the test should be skipped
+	 */
+	private Executor newVirtualThreadPerTask() {
+		try {
+			return CallbackExecutors.newVirtualThreadPerTask();
+		} catch (UnsupportedOperationException e) {
+			assertFalse("Virtual threads are not available", REQUIRE_VIRTUAL);
+			System.out.println(getName() + " skipped : " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Holds every query until none has arrived for HOLD_MILLIS, and then
+	 * answers them all
+	 */
+	private static class HoldingServer extends Thread {
+		final DatagramSocket socket;
+
+		HoldingServer() throws IOException {
+			socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+			socket.setSoTimeout(HOLD_MILLIS);
+			socket.setReceiveBufferSize(1024 * 1024);
+			setDaemon(true);
+		}
+
+		public void run() {
+			List held = new ArrayList();
+			while (!socket.isClosed()) {
+				try {
+					DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+					socket.receive(packet);
+					held.add(packet);
+				} catch (SocketTimeoutException e) {
+					for (int i = 0; i < held.size(); i++) {
+						answer((DatagramPacket) held.get(i));
+					}
+					held.clear();
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		}
+
+		private void answer(DatagramPacket packet) {
+			try {
+				Message query = new Message(packet.getData());
+				Message response = new Message(query.getHeader().getID());
+				response.getHeader().setFlag(Flags.QR);
+				response.addRecord(query.getQuestion(), Section.QUESTION);
+				byte[] out = response.toWire();
+				socket.send(new DatagramPacket(out, out.length, packet
+						.getSocketAddress()));
+			} catch (IOException e) {
+				// Dropped
+			}
+		}
+	}
+
+	private NonblockingResolver getResolver(HoldingServer server) throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+		resolver.setPort(server.socket.getLocalPort());
+		resolver.setTimeout(TIMEOUT);
+		resolver.setSingleUdpPort(true);
+		return resolver;
+	}
+
+	public void testConcurrentSyncSends() throws Exception {
+		Executor threads = newVirtualThreadPerTask();
+		if (threads == null) {
+			return;
+		}
+		HoldingServer server = new HoldingServer();
+		server.start();
+		try {
+			runConcurrentSends(threads, getResolver(server));
+		} finally {
+			server.socket.close();
+		}
+	}
+
+	public void testConcurrentExtendedSyncSends() throws Exception {
+		Executor threads = newVirtualThreadPerTask();
+		if (threads == null) {
+			return;
+		}
+		HoldingServer server = new HoldingServer();
+		server.start();
+		try {
+			ExtendedNonblockingResolver eres = ExtendedNonblockingResolver
+					.newInstance(new NonblockingResolver[] { getResolver(server) });
+			runConcurrentSends(threads, eres);
+		} finally {
+			server.socket.close();
+		}
+	}
+
+	private void runConcurrentSends(Executor threads, final Resolver resolver)
+			throws Exception {
+		final CountDownLatch done = new CountDownLatch(NUM_LOOKUPS);
+		final AtomicInteger timeouts = new AtomicInteger();
+		final AtomicInteger bad = new AtomicInteger();
+		final AtomicInteger platformThreads = new AtomicInteger();
+		// Each lookup's thread, while it is inside send()
+		final AtomicReferenceArray inSend = new AtomicReferenceArray(NUM_LOOKUPS);
+		for (int i = 0; i < NUM_LOOKUPS; i++) {
+			final int index = i;
+			final String name = "example" + i + ".net";
+			threads.execute(new Runnable() {
+				public void run() {
+					if (!isVirtual(Thread.currentThread())) {
+						platformThreads.incrementAndGet();
+					}
+					try {
+						Message query = getQuery(name);
+						inSend.set(index, Thread.currentThread());
+						Message response = resolver.send(query);
+						inSend.set(index, null);
+						if (!response.getQuestion().getName().equals(
+								Name.fromString(name + "."))) {
+							bad.incrementAndGet();
+						}
+					} catch (SocketTimeoutException e) {
+						timeouts.incrementAndGet();
+					} catch (Exception e) {
+						bad.incrementAndGet();
+					} finally {
+						inSend.set(index, null);
+						done.countDown();
+					}
+				}
+			});
+		}
+		// Count the lookups which are waiting inside send() at the same time
+		int peakWaiting = 0;
+		long deadline = System.currentTimeMillis() + TIMEOUT * 3 * 1000;
+		while (!done.await(10, TimeUnit.MILLISECONDS)) {
+			assertTrue("Lookups did not complete",
+					System.currentTimeMillis() < deadline);
+			int waiting = 0;
+			for (int i = 0; i < NUM_LOOKUPS; i++) {
+				Thread thread = (Thread) inSend.get(i);
+				if (thread != null) {
+					Thread.State state = thread.getState();
+					if ((state == Thread.State.WAITING)
+							|| (state == Thread.State.TIMED_WAITING)) {
+						waiting++;
+					}
+				}
+			}
+			peakWaiting = Math.max(peakWaiting, waiting);
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		System.out.println(getName() + " : " + NUM_LOOKUPS + " lookups, "
+				+ peakWaiting + " waiting in send() at once (" + processors
+				+ " carriers), " + timeouts.get() + " timeouts, "
+				+ bad.get() + " other failures");
+		assertEquals("Lookups ran on platform threads", 0,
+				platformThreads.get());
+		assertTrue("Only " + peakWaiting + " threads waited in send() at once",
+				peakWaiting > processors);
+		assertEquals("Lookups failed", 0, bad.get());
+		if (NUM_LOOKUPS <= MAX_STRICT_LOOKUPS) {
+			assertEquals("Lookups timed out", 0, timeouts.get());
+			assertEquals("Lookups were not all waiting at once", NUM_LOOKUPS,
+					peakWaiting);
+		}
+	}
+}
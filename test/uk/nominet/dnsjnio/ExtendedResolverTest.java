@@ -208,4 +208,41 @@ public class ExtendedResolverTest extends TestCase {
 		int backID = response.getHeader().getID();
 		assertTrue("Wrong ID!", backID != 42);
 	}
+
+	public void testFailoverFromManyThreads() throws Exception {
+		// The first server isn't there, so every request has to fail over
+		// to the second - from several client threads at once
+		startServers(1);
+		NonblockingResolver dead = new NonblockingResolver(SERVER);
+		dead.setTimeout(0, 500);
+		dead.setPort(PORT + 1 + NUM_SERVERS);
+		eres = ExtendedNonblockingResolver.newInstance(new NonblockingResolver[] {
+				dead, resolvers[0] });
+		eres.setRetries(1);
+		final Message query = makeQuery();
+		final int[] bad = new int[1];
+		Thread[] threads = new Thread[10];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < NUM_REQUESTS / 10; j++) {
+						try {
+							eres.send(query);
+						} catch (IOException e) {
+							synchronized (bad) {
+								bad[0]++;
+							}
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join(TIMEOUT * 20 * 1000);
+			assertFalse("Requests did not complete", threads[i].isAlive());
+		}
+		assertEquals(0, bad[0]);
+		stopServers();
+	}
 }
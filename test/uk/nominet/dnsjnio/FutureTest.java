@@ -0,0 +1,90 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check the CompletableFuture interface to the resolvers
+ */
+public class FutureTest extends ServerTestCase {
+
+	public void testFutures() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		runFutures(resolver, false);
+		runFutures(resolver, true);
+		resolver.setSingleUdpPort(true);
+		runFutures(resolver, false);
+	}
+
+	private void runFutures(NonblockingResolver resolver, boolean tcp) throws Exception {
+		int numRequests = 20;
+		resolver.setTCP(tcp);
+		CompletableFuture[] futures = new CompletableFuture[numRequests];
+		for (int i = 0; i < numRequests; i++) {
+			futures[i] = resolver.sendAsync(getQuery("example" + i + ".net"))
+					.thenApply(m -> m.getQuestion().getName());
+		}
+		CompletableFuture.allOf(futures).get(TIMEOUT, TimeUnit.SECONDS);
+		for (int i = 0; i < numRequests; i++) {
+			assertEquals(Name.fromString("example" + i + ".net."), futures[i].get());
+		}
+	}
+
+	public void testFutureTimeout() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(1);
+		CompletableFuture<Message> future = resolver.sendAsync(getQuery("timeout.example.net"));
+		try {
+			future.get(TIMEOUT, TimeUnit.SECONDS);
+			fail("No exception thrown when timeout expected!");
+		} catch (ExecutionException e) {
+			assertTrue("Wrong exception " + e.getCause(),
+					e.getCause() instanceof SocketTimeoutException);
+		}
+		assertTrue(future.isCompletedExceptionally());
+	}
+
+	public void testExtendedResolverFuture() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(2);
+		ExtendedNonblockingResolver eres = ExtendedNonblockingResolver
+				.newInstance(new NonblockingResolver[] { resolver });
+		eres.setRetries(1);
+		Message response = eres.sendAsync(getQuery("example.net")).get(TIMEOUT, TimeUnit.SECONDS);
+		assertEquals(Name.fromString("example.net."), response.getQuestion().getName());
+
+		CompletableFuture<Message> future = eres.sendAsync(getQuery("timeout.example.net"));
+		try {
+			future.get(TIMEOUT, TimeUnit.SECONDS);
+			fail("No exception thrown when timeout expected!");
+		} catch (ExecutionException e) {
+			assertTrue("Wrong exception " + e.getCause(),
+					e.getCause() instanceof InterruptedIOException);
+		}
+	}
+}
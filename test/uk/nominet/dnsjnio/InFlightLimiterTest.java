@@ -0,0 +1,224 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check the InFlightLimiter policies, and the limits on a resolver's queries
+ */
+public class InFlightLimiterTest extends ServerTestCase {
+	final static int NUM_REQUESTS = 40;
+
+	private class RecordingTask implements InFlightLimiter.Task {
+		List started = new ArrayList();
+
+		List failures = new ArrayList();
+
+		int num;
+
+		boolean fail = false;
+
+		RecordingTask(int num) {
+			this.num = num;
+		}
+
+		public void admitted(boolean queued) {
+			synchronized (started) {
+				started.add(new Integer(num));
+			}
+			if (fail) {
+				throw new IllegalStateException("Task " + num + " failed");
+			}
+		}
+
+		public void failed(RuntimeException e) {
+			failures.add(e);
+		}
+	}
+
+	public void testFailingTask() {
+		InFlightLimiter limiter = new InFlightLimiter();
+		limiter.setMaxInFlight(1);
+		// A task which fails straight away gives its slot back
+		RecordingTask failing = new RecordingTask(0);
+		failing.fail = true;
+		assertTrue(limiter.submit(failing, true));
+		assertEquals(1, failing.failures.size());
+		assertEquals(0, limiter.getInFlight());
+		// A queued task which fails gives its slot to the next one
+		RecordingTask first = new RecordingTask(1);
+		RecordingTask queuedFailing = new RecordingTask(2);
+		queuedFailing.fail = true;
+		RecordingTask last = new RecordingTask(3);
+		assertTrue(limiter.submit(first, true));
+		assertTrue(limiter.submit(queuedFailing, true));
+		assertTrue(limiter.submit(last, true));
+		assertEquals(2, limiter.getQueueDepth());
+		limiter.release();
+		assertEquals(1, queuedFailing.failures.size());
+		assertEquals(1, last.started.size());
+		assertEquals(0, limiter.getQueueDepth());
+		assertEquals(1, limiter.getInFlight());
+	}
+
+	public void testQueuePolicy() {
+		InFlightLimiter limiter = new InFlightLimiter();
+		limiter.setMaxInFlight(2);
+		RecordingTask[] tasks = new RecordingTask[4];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new RecordingTask(i);
+			assertTrue(limiter.submit(tasks[i], true));
+		}
+		assertEquals(1, tasks[0].started.size());
+		assertEquals(1, tasks[1].started.size());
+		assertEquals(0, tasks[2].started.size());
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(2, limiter.getQueueDepth());
+		// Queued tasks are started in order as slots are released
+		limiter.release();
+		assertEquals(1, tasks[2].started.size());
+		assertEquals(0, tasks[3].started.size());
+		assertEquals(1, limiter.getQueueDepth());
+		// Raising the limit starts the rest
+		limiter.setMaxInFlight(3);
+		assertEquals(1, tasks[3].started.size());
+		assertEquals(0, limiter.getQueueDepth());
+		assertEquals(2, limiter.getPeakQueueDepth());
+		assertEquals(2, limiter.getQueuedCount());
+		// A full queue rejects
+		limiter.setMaxQueued(0);
+		assertFalse(limiter.submit(new RecordingTask(4), true));
+		assertEquals(1, limiter.getRejectedCount());
+	}
+
+	public void testRejectPolicy() {
+		InFlightLimiter limiter = new InFlightLimiter();
+		limiter.setMaxInFlight(1);
+		limiter.setPolicy(InFlightLimiter.Policy.REJECT);
+		assertTrue(limiter.submit(new RecordingTask(0), true));
+		assertFalse(limiter.submit(new RecordingTask(1), true));
+		assertEquals(1, limiter.getRejectedCount());
+		limiter.release();
+		assertTrue(limiter.submit(new RecordingTask(2), true));
+	}
+
+	public void testBlockPolicy() throws Exception {
+		final InFlightLimiter limiter = new InFlightLimiter();
+		limiter.setMaxInFlight(1);
+		limiter.setPolicy(InFlightLimiter.Policy.BLOCK);
+		assertTrue(limiter.submit(new RecordingTask(0), true));
+		final RecordingTask blocked = new RecordingTask(1);
+		Thread thread = new Thread() {
+			public void run() {
+				limiter.submit(blocked, true);
+			}
+		};
+		thread.start();
+		for (int i = 0; (i < 100) && (limiter.getBlockedThreads() == 0); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, limiter.getBlockedThreads());
+		assertEquals(0, blocked.started.size());
+		limiter.release();
+		thread.join(TIMEOUT * 1000);
+		assertEquals(1, blocked.started.size());
+		assertEquals(0, limiter.getBlockedThreads());
+		// A task which can't block is queued instead
+		RecordingTask queued = new RecordingTask(2);
+		assertTrue(limiter.submit(queued, false));
+		assertEquals(1, limiter.getQueueDepth());
+		limiter.release();
+		assertEquals(1, queued.started.size());
+	}
+
+	private void runQueries(NonblockingResolver resolver) throws Exception {
+		ResponseQueue queue = new ResponseQueue();
+		List<Message> queries = getQueries(NUM_REQUESTS);
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			resolver.sendAsync(queries.get(i), queue);
+		}
+		int bad = 0;
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			Response response = queue.poll(TIMEOUT * 2, TimeUnit.SECONDS);
+			assertNotNull("Queries did not complete", response);
+			if (response.isException()) {
+				bad++;
+			}
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + NUM_REQUESTS + ")",
+				bad < (NUM_REQUESTS * 0.1));
+	}
+
+	public void testResolverLimit() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		InFlightLimiter limiter = resolver.getInFlightLimiter();
+		limiter.setMaxInFlight(10);
+		runQueries(resolver);
+		assertTrue(limiter.getPeakQueueDepth() > 0);
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(0, limiter.getQueueDepth());
+		resolver.setSingleUdpPort(true);
+		runQueries(resolver);
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	public void testRejectedQuery() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		InFlightLimiter limiter = resolver.getInFlightLimiter();
+		limiter.setMaxInFlight(1);
+		limiter.setPolicy(InFlightLimiter.Policy.REJECT);
+		ResponseQueue queue = new ResponseQueue();
+		List<Message> queries = getQueries(2);
+		Object first = resolver.sendAsync(queries.get(0), queue);
+		Object second = resolver.sendAsync(queries.get(1), queue);
+		// The rejection comes back straight away
+		Response response = queue.poll();
+		assertNotNull(response);
+		assertEquals(second, response.getId());
+		assertTrue(response.getException() instanceof QueryRejectedException);
+		response = queue.poll(TIMEOUT * 2, TimeUnit.SECONDS);
+		assertEquals(first, response.getId());
+		assertFalse(response.isException());
+		assertEquals(1, limiter.getRejectedCount());
+	}
+
+	public void testUpstreamLimit() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		InFlightLimiter upstream = InFlightLimiter.forUpstream(resolver.getRemoteAddress());
+		assertSame(upstream, InFlightLimiter.forUpstream(resolver.getRemoteAddress()));
+		upstream.setMaxInFlight(10);
+		try {
+			runQueries(resolver);
+			assertTrue(upstream.getPeakQueueDepth() > 0);
+			assertEquals(0, upstream.getInFlight());
+			assertEquals(0, resolver.getInFlightLimiter().getInFlight());
+		} finally {
+			upstream.setMaxInFlight(0);
+		}
+	}
+}
@@ -22,7 +22,13 @@ import org.xbill.DNS.*;
 import java.net.SocketTimeoutException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class ListenerTest extends TestCase {
     final static String SERVER = "localhost";
@@ -239,6 +245,83 @@ public class ListenerTest extends TestCase {
         doTestManyAsynchronousRequests(resolver, 50, PORT); // 53);
     }
 
+    public void testCallbackExecutor() throws Exception {
+        final Set threadNames = Collections.synchronizedSet(new HashSet());
+        final int[] count = new int[1];
+        NonblockingResolver resolver = new NonblockingResolver(SERVER);
+        resolver.setCallbackExecutor(new Executor() {
+            public void execute(Runnable task) {
+                synchronized (count) {
+                    count[0]++;
+                }
+                threadNames.add(Thread.currentThread().getName());
+                CallbackExecutors.direct().execute(task);
+            }
+        });
+        doTestManyAsynchronousRequests(resolver, 50, PORT);
+        // And over the single port
+        resetResults();
+        resolver.setSingleUdpPort(true);
+        doTestManyAsynchronousRequests(resolver, 50, PORT);
+        synchronized (count) {
+            assertEquals(100, count[0]);
+        }
+        // The callbacks were run directly on the select threads
+        for (Iterator it = threadNames.iterator(); it.hasNext(); ) {
+            String threadName = (String)it.next();
+            assertTrue(threadName, threadName.startsWith("DnsSelect-"));
+        }
+    }
+
+    public void testBoundedPoolOverflow() throws Exception {
+        // Two threads and two queued callbacks, all blocked
+        final Executor pool = CallbackExecutors.newBoundedPool(2, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(8);
+        final Set threadNames = Collections.synchronizedSet(new HashSet());
+        final Runnable callback = new Runnable() {
+            public void run() {
+                threadNames.add(Thread.currentThread().getName());
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                ran.countDown();
+            }
+        };
+        for (int i = 0; i < 4; i++) {
+            pool.execute(callback);
+        }
+        // A select thread is neither held up nor made to run a callback
+        final CountDownLatch submitted = new CountDownLatch(1);
+        DnsController.getLoop(0).invoke(new Runnable() {
+            public void run() {
+                pool.execute(callback);
+                pool.execute(callback);
+                submitted.countDown();
+            }
+        });
+        assertTrue("Select thread blocked", submitted.await(5, TimeUnit.SECONDS));
+        // Any other thread waits for room in the queue
+        Thread client = new Thread() {
+            public void run() {
+                pool.execute(callback);
+                pool.execute(callback);
+            }
+        };
+        client.start();
+        client.join(500);
+        assertTrue("Client not held up", client.isAlive());
+        release.countDown();
+        client.join(5000);
+        assertFalse(client.isAlive());
+        assertTrue("Callbacks lost", ran.await(5, TimeUnit.SECONDS));
+        for (Iterator it = threadNames.iterator(); it.hasNext(); ) {
+            String threadName = (String)it.next();
+            assertTrue(threadName, threadName.startsWith("dnsjnio-responder-"));
+        }
+    }
+
     private Message getQuery(String nameString) throws TextParseException {
         Name name = Name.fromString(nameString, Name.root);
         Record question = Record.newRecord(name, Type.A, DClass.ANY);
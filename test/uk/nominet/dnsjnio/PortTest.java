@@ -158,25 +158,27 @@ public class PortTest extends TestCase {
 		return true;
 	}
 
+	public void testTimeoutWhenConnectionNeverOpens() throws Exception {
+		// Nothing listens on the server port, so the TCP connection never
+		// opens - the query must still time out, rather than hang
+		ServerSocket closed = new ServerSocket(0, 1, InetAddress
+				.getByName("127.0.0.1"));
+		int deadPort = closed.getLocalPort();
+		closed.close();
+		NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+		resolver.setPort(deadPort);
+		resolver.setTCP(true);
+		resolver.setTimeout(1);
+		ResponseQueue queue = new ResponseQueue();
+		resolver.sendAsync(getQuery("example.net"), queue);
+		Response response = queue.poll(10, java.util.concurrent.TimeUnit.SECONDS);
+		assertNotNull("Query hung", response);
+		assertTrue("Got " + response.getException(),
+				response.getException() instanceof SocketTimeoutException);
+	}
+
 	public static int getPortFromResponse(Message m) {
-		for (int i = 0; i < 4; i++) {
-			try { // Can do something with the counts field here, instead of
-				// cycling through all of these
-				Record[] records = m.getSectionArray(i);
-				if (records != null) {
-					for (int j = 0; j < records.length; j++) {
-						if ((records[j]).getClass().equals(TXTRecord.class)) {
-							return Integer.valueOf(
-									((String) (((TXTRecord) (records[j]))
-											.getStrings().get(0)))).intValue();
-						}
-					}
-				}
-			} catch (IndexOutOfBoundsException e) {
-				// carry on!
-			}
-		}
-		return -999;
+		return TestServer.getPortFromResponse(m);
 	}
 
 	private Message getQuery(String nameString) throws TextParseException {
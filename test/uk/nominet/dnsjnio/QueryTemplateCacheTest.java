@@ -0,0 +1,101 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.util.Arrays;
+
+/**
+ * Check that encoded queries are reused with only the header ID changed
+ */
+public class QueryTemplateCacheTest extends ServerTestCase {
+
+	public void testKeys() throws Exception {
+		OPTRecord edns = new OPTRecord(1280, 0, 0);
+		Object key = QueryTemplateCache.getKey(getQuery("example.net"), null);
+		assertNotNull(key);
+		assertEquals(key, QueryTemplateCache.getKey(getQuery("example.net"), null));
+		// The name is sent as it is given
+		assertFalse(key.equals(QueryTemplateCache.getKey(getQuery("Example.net"), null)));
+		assertFalse(key.equals(QueryTemplateCache.getKey(getQuery("example.org"), null)));
+		assertFalse(key.equals(QueryTemplateCache.getKey(getQuery("example.net"), edns)));
+		Message noRecursion = getQuery("example.net");
+		noRecursion.getHeader().unsetFlag(Flags.RD);
+		assertFalse(key.equals(QueryTemplateCache.getKey(noRecursion, null)));
+		// Queries with records of their own are not cached
+		Message withOpt = getQuery("example.net");
+		withOpt.addRecord(edns, Section.ADDITIONAL);
+		assertNull(QueryTemplateCache.getKey(withOpt, null));
+	}
+
+	public void testTemplate() throws Exception {
+		QueryTemplateCache cache = new QueryTemplateCache(2);
+		Message query = getQuery("example.net");
+		query.getHeader().setID(1234);
+		byte[] wire = query.toWire();
+		Object key = QueryTemplateCache.getKey(query, null);
+		cache.put(key, wire, 512);
+		// The caller's copy is left alone
+		assertEquals(1234, WireHeader.getId(wire));
+		QueryTemplateCache.Template template = cache.get(key);
+		assertEquals(512, template.getUdpSize());
+		byte[] patched = template.newQuery(4321);
+		assertEquals(4321, WireHeader.getId(patched));
+		query.getHeader().setID(4321);
+		assertTrue(Arrays.equals(query.toWire(), patched));
+
+		// Least recently used templates are dropped
+		Object key2 = QueryTemplateCache.getKey(getQuery("example2.net"), null);
+		Object key3 = QueryTemplateCache.getKey(getQuery("example3.net"), null);
+		cache.put(key2, wire, 512);
+		cache.get(key);
+		cache.put(key3, wire, 512);
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(key));
+		assertNull(cache.get(key2));
+		cache.setMaxSize(0);
+		assertEquals(0, cache.size());
+		cache.put(key, wire, 512);
+		assertNull(cache.get(key));
+	}
+
+	public void testRepeatedQueries() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setEDNS(0);
+		Message query = getQuery("example.net");
+		ResponseQueue queue = new ResponseQueue();
+		int numRequests = 10;
+		for (int i = 0; i < numRequests; i++) {
+			// The first send builds the template, the rest only patch the ID
+			resolver.sendAsyncWithNewId(query, new Integer(i),
+					resolver.getTimeoutMillis(), false, queue);
+		}
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			assertFalse("Exception " + response.getException(), response.isException());
+			assertEquals(Name.fromString("example.net."),
+					response.getMessage().getQuestion().getName());
+		}
+		// Changing the EDNS settings doesn't reuse the old template
+		resolver.setEDNS(0, 1280, 0, null);
+		Message response = resolver.send(query);
+		assertEquals(query.getHeader().getID(), response.getHeader().getID());
+	}
+}
@@ -0,0 +1,87 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+/**
+ * Check that pre-encoded queries can be sent, and that raw responses are
+ * only decoded on demand
+ */
+public class RawResponseTest extends ServerTestCase {
+
+	public void testSendAsyncRaw() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		runRawQueries(resolver, false);
+		runRawQueries(resolver, true);
+	}
+
+	public void testSendAsyncRawSingleUdpPort() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setSingleUdpPort(true);
+		runRawQueries(resolver, false);
+	}
+
+	private void runRawQueries(NonblockingResolver resolver, boolean tcp) throws Exception {
+		int numRequests = 20;
+		resolver.setTCP(tcp);
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = 0; i < numRequests; i++) {
+			Message query = getQuery("example" + i + ".net");
+			query.getHeader().setID(1000 + i);
+			resolver.sendAsyncRaw(query.toWire(), new Integer(i), queue);
+		}
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			assertFalse("Exception " + response.getException(), response.isException());
+			int index = ((Integer)response.getId()).intValue();
+			byte[] wire = response.getWireData();
+			assertNotNull(wire);
+			assertEquals(1000 + index, WireHeader.getId(wire));
+			Message message = response.getMessage();
+			assertNotNull(message);
+			assertEquals(1000 + index, message.getHeader().getID());
+			assertEquals(Name.fromString("example" + index + ".net."),
+					message.getQuestion().getName());
+			// Decoded only once
+			assertSame(message, response.getMessage());
+		}
+	}
+
+	public void testRawResponseMode() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setRawResponse(true);
+		ResponseQueue queue = new ResponseQueue();
+		Message query = getQuery("example.net");
+		// The header ID is only picked when first asked for
+		int headerId = query.getHeader().getID();
+		resolver.sendAsync(query, queue);
+		Response response = queue.getItem();
+		assertFalse("Exception " + response.getException(), response.isException());
+		assertNotNull(response.getWireData());
+		assertEquals(headerId, response.getMessage().getHeader().getID());
+		// The blocking interface still returns the decoded Message
+		Message message = resolver.send(getQuery("example.org"));
+		assertEquals(Name.fromString("example.org."), message.getQuestion().getName());
+	}
+}
@@ -0,0 +1,88 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check the blocking, timed and batch operations of the ResponseQueue
+ */
+public class ResponseQueueTest extends TestCase {
+
+	private Response newResponse(int id) {
+		Response response = new Response();
+		response.setId(new Integer(id));
+		return response;
+	}
+
+	public void testPollAndDrain() throws Exception {
+		ResponseQueue queue = new ResponseQueue();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		for (int i = 0; i < 10; i++) {
+			queue.insert(newResponse(i));
+		}
+		assertEquals(10, queue.size());
+		assertEquals(new Integer(0), queue.poll().getId());
+		List batch = new ArrayList();
+		assertEquals(4, queue.drainTo(batch, 4));
+		for (int i = 0; i < 4; i++) {
+			assertEquals(new Integer(i + 1), ((Response)batch.get(i)).getId());
+		}
+		batch.clear();
+		assertEquals(5, queue.drainTo(batch));
+		assertEquals(new Integer(9), ((Response)batch.get(4)).getId());
+		assertTrue(queue.isEmpty());
+	}
+
+	public void testWaitForResponse() throws Exception {
+		final ResponseQueue queue = new ResponseQueue();
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				queue.insert(newResponse(1));
+			}
+		};
+		producer.start();
+		Response response = queue.poll(10, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(new Integer(1), response.getId());
+	}
+
+	public void testInterrupt() throws Exception {
+		final ResponseQueue queue = new ResponseQueue();
+		Thread.currentThread().interrupt();
+		try {
+			queue.take();
+			fail("take() not interrupted");
+		} catch (InterruptedException e) {
+		}
+		// getItem() keeps waiting, but leaves the interrupt status set
+		queue.insert(newResponse(1));
+		Thread.currentThread().interrupt();
+		assertEquals(new Integer(1), queue.getItem().getId());
+		assertTrue(Thread.interrupted());
+	}
+}
@@ -0,0 +1,58 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import junit.framework.TestCase;
+import org.xbill.DNS.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Common fixture for the tests which send queries to the local TestServer
+ */
+public abstract class ServerTestCase extends TestCase {
+	final static String SERVER = "localhost";
+
+	final static int PORT = TestServer.PORT;
+
+	final static int TIMEOUT = 10;
+
+	static TestServer server = TestServer.startServer();
+
+	public void setUp() {
+		Timer.reset();
+	}
+
+	public void finalize() {
+		server.stopRunning();
+	}
+
+	static Message getQuery(String nameString) throws TextParseException {
+		Name name = Name.fromString(nameString, Name.root);
+		Record question = Record.newRecord(name, Type.A, DClass.ANY);
+		return Message.newQuery(question);
+	}
+
+	static List<Message> getQueries(int numQueries) throws TextParseException {
+		List<Message> queries = new ArrayList<Message>();
+		for (int i = 0; i < numQueries; i++) {
+			queries.add(getQuery("example" + i + ".net"));
+		}
+		return queries;
+	}
+}
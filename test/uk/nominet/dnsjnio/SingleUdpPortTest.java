@@ -0,0 +1,136 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Check that single UDP port mode sends all UDP queries from the same port
+ */
+public class SingleUdpPortTest extends ServerTestCase {
+	public void testSingleUdpPort() throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setSingleUdpPort(true);
+		Set ports = new HashSet();
+		// The socket is kept open between the two batches
+		runQueries(resolver, 0, 100, ports);
+		runQueries(resolver, 100, 100, ports);
+		assertEquals("Queries sent from more than one port (" + ports + ")",
+				1, ports.size());
+	}
+
+	public void testNewIdsAvoidCollisions() throws Exception {
+		int numRequests = 100;
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setSingleUdpPort(true);
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = 0; i < numRequests; i++) {
+			// Every query has the same QID - the resolver must replace it
+			Message query = getQuery("example" + i + ".net");
+			query.getHeader().setID(1);
+			resolver.sendAsyncWithNewId(query, new Integer(i),
+					resolver.getTimeoutMillis(), false, queue);
+		}
+		int bad = 0;
+		Set ports = new HashSet();
+		Set ids = new HashSet();
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			if (response.isException()) {
+				bad++;
+				continue;
+			}
+			int id = ((Integer)response.getId()).intValue();
+			Message message = response.getMessage();
+			assertEquals(Name.fromString("example" + id + ".net", Name.root),
+					message.getQuestion().getName());
+			ids.add(new Integer(message.getHeader().getID()));
+			ports.add(TestServer.getPortFromResponse(message));
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + numRequests + ")",
+				bad < (numRequests * 0.05));
+		assertEquals("QIDs reused", numRequests - bad, ids.size());
+		assertEquals("Queries sent from more than one port (" + ports + ")",
+				1, ports.size());
+	}
+
+	public void testShardsTakeCollidingIds() throws Exception {
+		int numRequests = 20;
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setSingleUdpPort(true);
+		resolver.setMaxSinglePortShards(numRequests);
+		// No shard is created until a query needs one
+		assertEquals(0, resolver.getControllerGroup().getNumShards());
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = 0; i < numRequests; i++) {
+			// Same QID every time - each query needs a shard of its own
+			Message query = getQuery("example" + i + ".net");
+			query.getHeader().setID(7);
+			resolver.sendAsync(query, new Integer(i), queue);
+		}
+		assertEquals(numRequests, resolver.getControllerGroup().getNumShards());
+		int bad = 0;
+		Set ports = new HashSet();
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			if (response.isException()) {
+				bad++;
+				continue;
+			}
+			assertEquals(7, response.getMessage().getHeader().getID());
+			ports.add(TestServer.getPortFromResponse(response.getMessage()));
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + numRequests + ")",
+				bad < (numRequests * 0.05));
+		assertEquals(numRequests - bad, ports.size());
+	}
+
+	private void runQueries(NonblockingResolver resolver, int firstId,
+			int numRequests, Set ports) throws Exception {
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = firstId; i < firstId + numRequests; i++) {
+			Message query = getQuery("example" + i + ".net");
+			query.getHeader().setID(i);
+			resolver.sendAsync(query, new Integer(i), queue);
+		}
+		int bad = 0;
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			if (response.isException()) {
+				bad++;
+				continue;
+			}
+			int id = ((Integer)response.getId()).intValue();
+			Message message = response.getMessage();
+			assertEquals(id, message.getHeader().getID());
+			assertEquals(Name.fromString("example" + id + ".net", Name.root),
+					message.getQuestion().getName());
+			ports.add(TestServer.getPortFromResponse(message));
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + numRequests + ")",
+				bad < (numRequests * 0.05));
+	}
+}
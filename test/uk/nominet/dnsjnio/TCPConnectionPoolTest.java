@@ -0,0 +1,172 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Check that single port TCP queries are pipelined over persistent connections
+ */
+public class TCPConnectionPoolTest extends ServerTestCase {
+	public void testPersistentConnections() throws Exception {
+		int maxConnections = 4;
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setTCP(true);
+		resolver.setSingleTcpPort(true);
+		resolver.setMaxTcpConnections(maxConnections);
+		resolver.setMaxTcpQueriesPerConnection(10);
+		Set ports = new HashSet();
+		runQueries(resolver, 0, 40, ports);
+		assertTrue("Too many connections used (" + ports.size() + ")",
+				ports.size() <= maxConnections);
+		// The connections stay open, so the next batch goes over them too
+		Set morePorts = new HashSet();
+		runQueries(resolver, 100, 40, morePorts);
+		assertTrue("Connections not reused (" + ports + ", " + morePorts + ")",
+				ports.containsAll(morePorts));
+	}
+
+	/**
+	 * A server which reads a query on each connection, and then closes it
+	 * without answering - except on the connections it is told to answer on
+	 */
+	private static class ClosingServer extends Thread {
+		final ServerSocket serverSocket;
+
+		final int answerOnConnection;
+
+		ClosingServer(int answerOnConnection) throws IOException {
+			this.serverSocket = new ServerSocket(0, 50, InetAddress
+					.getByName("127.0.0.1"));
+			this.answerOnConnection = answerOnConnection;
+		}
+
+		public void run() {
+			try {
+				for (int i = 0; ; i++) {
+					Socket socket = serverSocket.accept();
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					byte[] wire = new byte[in.readUnsignedShort()];
+					in.readFully(wire);
+					if (i == answerOnConnection) {
+						Message query = new Message(wire);
+						Message answer = new Message(query.getHeader().getID());
+						answer.getHeader().setFlag(Flags.QR);
+						answer.addRecord(query.getQuestion(), Section.QUESTION);
+						byte[] out = answer.toWire();
+						DataOutputStream dout = new DataOutputStream(socket
+								.getOutputStream());
+						dout.writeShort(out.length);
+						dout.write(out);
+						dout.flush();
+					}
+					socket.close();
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	private NonblockingResolver getResolver(ClosingServer server)
+			throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+		resolver.setPort(server.serverSocket.getLocalPort());
+		resolver.setTimeout(5);
+		resolver.setTCP(true);
+		resolver.setSingleTcpPort(true);
+		return resolver;
+	}
+
+	public void testResendAfterClose() throws Exception {
+		// The first connection is closed without an answer - the query is
+		// sent again on the next one, rather than waiting for its timeout
+		ClosingServer closingServer = new ClosingServer(1);
+		closingServer.start();
+		try {
+			NonblockingResolver resolver = getResolver(closingServer);
+			long start = System.currentTimeMillis();
+			Message response = resolver.send(getQuery("example.net"));
+			assertEquals(Name.fromString("example.net", Name.root), response
+					.getQuestion().getName());
+			assertTrue("Waited for the timeout",
+					System.currentTimeMillis() - start < 4000);
+		} finally {
+			closingServer.serverSocket.close();
+		}
+	}
+
+	public void testFailAfterSecondClose() throws Exception {
+		// Never answered - the query fails once it has been resent once
+		ClosingServer closingServer = new ClosingServer(-1);
+		closingServer.start();
+		try {
+			NonblockingResolver resolver = getResolver(closingServer);
+			long start = System.currentTimeMillis();
+			try {
+				resolver.send(getQuery("example.net"));
+				fail("Query was answered");
+			} catch (SocketTimeoutException e) {
+				fail("Query timed out rather than failing");
+			} catch (IOException e) {
+				// OK
+			}
+			assertTrue("Waited for the timeout",
+					System.currentTimeMillis() - start < 4000);
+		} finally {
+			closingServer.serverSocket.close();
+		}
+	}
+
+	private void runQueries(NonblockingResolver resolver, int firstId,
+			int numRequests, Set ports) throws Exception {
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = firstId; i < firstId + numRequests; i++) {
+			Message query = getQuery("example" + i + ".net");
+			query.getHeader().setID(i);
+			resolver.sendAsync(query, new Integer(i), queue);
+		}
+		int bad = 0;
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			if (response.isException()) {
+				bad++;
+				continue;
+			}
+			int id = ((Integer)response.getId()).intValue();
+			Message message = response.getMessage();
+			assertEquals(id, message.getHeader().getID());
+			assertEquals(Name.fromString("example" + id + ".net", Name.root),
+					message.getQuestion().getName());
+			ports.add(TestServer.getPortFromResponse(message));
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + numRequests + ")",
+				bad < (numRequests * 0.05));
+	}
+}
@@ -0,0 +1,254 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import junit.framework.TestCase;
+import org.xbill.DNS.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Check that TCPConnection splits the responses out of the stream intact,
+ * however the server's writes break it up
+ */
+public class TCPFramingTest extends TestCase {
+	// TXT records in the answer to a "big" query, which brings the
+	// response close to 64 KB
+	final static int BIG_RECORDS = 235;
+
+	public void setUp() {
+		Timer.reset();
+	}
+
+	/**
+	 * Reads the given number of queries from each connection, and then
+	 * writes all the responses, in chunks of chunkSize bytes (or all at
+	 * once). If splitPrefix is set, there is also a break after the first
+	 * byte of the last response's length prefix.
+	 */
+	private static class FramingServer extends Thread {
+		final ServerSocket serverSocket;
+
+		final int queriesPerConnection;
+
+		final int chunkSize;
+
+		final boolean splitPrefix;
+
+		FramingServer(int queriesPerConnection, int chunkSize,
+				boolean splitPrefix) throws IOException {
+			this.serverSocket = new ServerSocket(0, 50, InetAddress
+					.getByName("127.0.0.1"));
+			this.queriesPerConnection = queriesPerConnection;
+			this.chunkSize = chunkSize;
+			this.splitPrefix = splitPrefix;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					answer(socket);
+					socket.close();
+				}
+			} catch (Exception e) {
+				// Closed
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+
+		private void answer(Socket socket) throws Exception {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			int lastPrefix = 0;
+			for (int i = 0; i < queriesPerConnection; i++) {
+				byte[] wire = new byte[in.readUnsignedShort()];
+				in.readFully(wire);
+				byte[] out = getResponse(new Message(wire)).toWire();
+				lastPrefix = stream.size();
+				stream.write(out.length >>> 8);
+				stream.write(out.length & 0xFF);
+				stream.write(out);
+			}
+			byte[] bytes = stream.toByteArray();
+			OutputStream out = socket.getOutputStream();
+			int start = 0;
+			if (splitPrefix) {
+				write(out, bytes, 0, lastPrefix + 1);
+				start = lastPrefix + 1;
+			}
+			write(out, bytes, start, bytes.length);
+		}
+
+		private void write(OutputStream out, byte[] bytes, int start, int end)
+				throws Exception {
+			int chunk = (chunkSize > 0) ? chunkSize : end - start;
+			for (int i = start; i < end; i += chunk) {
+				out.write(bytes, i, Math.min(chunk, end - i));
+				out.flush();
+				// Give the resolver a chance to read each chunk on its own
+				Thread.sleep((chunkSize == 1) ? 1 : 20);
+			}
+		}
+	}
+
+	static Message getResponse(Message query) throws Exception {
+		Message response = new Message(query.getHeader().getID());
+		response.getHeader().setFlag(Flags.QR);
+		Record question = query.getQuestion();
+		response.addRecord(question, Section.QUESTION);
+		int numRecords = question.getName().toString().startsWith("big") ? BIG_RECORDS
+				: 1;
+		for (int i = 0; i < numRecords; i++) {
+			response.addRecord(new TXTRecord(question.getName(), DClass.IN,
+					3600, getText(i)), Section.ANSWER);
+		}
+		return response;
+	}
+
+	// A full length string, different for each record
+	static String getText(int i) {
+		char[] text = new char[255];
+		Arrays.fill(text, (char) ('a' + (i % 26)));
+		return i + new String(text, 0, 255 - String.valueOf(i).length());
+	}
+
+	private void checkResponse(Message query, Message response)
+			throws Exception {
+		Name name = query.getQuestion().getName();
+		assertEquals(name, response.getQuestion().getName());
+		Record[] answers = response.getSectionArray(Section.ANSWER);
+		assertEquals(name.toString().startsWith("big") ? BIG_RECORDS : 1,
+				answers.length);
+		for (int i = 0; i < answers.length; i++) {
+			assertEquals(getText(i), ((TXTRecord) answers[i]).getStrings()
+					.get(0));
+		}
+	}
+
+	private NonblockingResolver getResolver(FramingServer server) throws Exception {
+		NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+		resolver.setPort(server.serverSocket.getLocalPort());
+		resolver.setTimeout(20);
+		resolver.setTCP(true);
+		return resolver;
+	}
+
+	/**
+	 * Pipeline the queries over one single port connection, and check that
+	 * every response arrives intact
+	 */
+	private void runPipelined(List<Message> queries, int chunkSize,
+			boolean splitPrefix) throws Exception {
+		FramingServer server = new FramingServer(queries.size(), chunkSize,
+				splitPrefix);
+		server.start();
+		try {
+			NonblockingResolver resolver = getResolver(server);
+			resolver.setSingleTcpPort(true);
+			resolver.setMaxTcpConnections(1);
+			resolver.setMaxTcpQueriesPerConnection(queries.size());
+			ResponseQueue queue = new ResponseQueue();
+			for (int i = 0; i < queries.size(); i++) {
+				resolver.sendAsync((Message) queries.get(i), new Integer(i), queue);
+			}
+			for (int i = 0; i < queries.size(); i++) {
+				Response response = queue.getItem();
+				assertFalse("Got " + response.getException(), response
+						.isException());
+				Message query = (Message) queries.get(((Integer) response
+						.getId()).intValue());
+				assertEquals(query.getHeader().getID(), response.getMessage()
+						.getHeader().getID());
+				checkResponse(query, response.getMessage());
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	private List<Message> getQueries(String[] names) throws Exception {
+		List<Message> queries = new ArrayList<Message>();
+		for (int i = 0; i < names.length; i++) {
+			Message query = ServerTestCase.getQuery(names[i]);
+			query.getHeader().setID(i + 1);
+			queries.add(query);
+		}
+		return queries;
+	}
+
+	public void testBigResponseSize() throws Exception {
+		// Make sure the "big" response really is close to the 64 KB limit
+		Message query = ServerTestCase.getQuery("big.example.net");
+		int length = getResponse(query).toWire().length;
+		assertTrue("Only " + length + " bytes", length > 60000);
+		assertTrue("Too big at " + length + " bytes", length <= 65535);
+	}
+
+	public void testOneByteWrites() throws Exception {
+		runPipelined(getQueries(new String[] { "example1.net", "example2.net",
+				"example3.net" }), 1, false);
+	}
+
+	public void testBackToBackWrites() throws Exception {
+		// All the responses in one write
+		runPipelined(getQueries(new String[] { "example1.net", "example2.net",
+				"example3.net", "example4.net" }), 0, false);
+	}
+
+	public void testSplitLengthPrefix() throws Exception {
+		// The last response's length prefix is split across two reads
+		runPipelined(getQueries(new String[] { "example1.net", "example2.net",
+				"example3.net", "example4.net" }), 0, true);
+	}
+
+	public void testBigResponses() throws Exception {
+		// Big responses mixed with small ones, partly back to back, and
+		// broken up where the reads won't expect
+		runPipelined(getQueries(new String[] { "example1.net",
+				"big1.example.net", "example2.net", "big2.example.net" }), 7000,
+				true);
+	}
+
+	public void testBigResponseOnOwnConnection() throws Exception {
+		// Without single port mode, the partly read message has to outgrow
+		// the connection's initial buffer
+		FramingServer server = new FramingServer(1, 1000, true);
+		server.start();
+		try {
+			NonblockingResolver resolver = getResolver(server);
+			Message query = ServerTestCase.getQuery("big.example.net");
+			checkResponse(query, resolver.send(query));
+		} finally {
+			server.close();
+		}
+	}
+}
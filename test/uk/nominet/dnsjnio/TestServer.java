@@ -163,4 +163,19 @@ public class TestServer extends Thread {
         }
         return response;
     }
+
+    /**
+     * Read back the query source port which formResponse put in a TXT record
+     */
+    public static int getPortFromResponse(Message m) {
+        for (int i = 0; i < 4; i++) {
+            Record[] records = m.getSectionArray(i);
+            for (int j = 0; j < records.length; j++) {
+                if (records[j] instanceof TXTRecord) {
+                    return Integer.parseInt((String) ((TXTRecord) records[j]).getStrings().get(0));
+                }
+            }
+        }
+        return -999;
+    }
 }
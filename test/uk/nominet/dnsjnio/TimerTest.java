@@ -0,0 +1,70 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import junit.framework.TestCase;
+
+/**
+ * Check that the Timer calls each timeout back exactly once
+ */
+public class TimerTest extends TestCase {
+	private static class CountingTask implements Runnable {
+		int runs = 0;
+
+		boolean fail;
+
+		CountingTask(boolean fail) {
+			this.fail = fail;
+		}
+
+		public void run() {
+			synchronized (this) {
+				runs++;
+			}
+			if (fail) {
+				throw new RuntimeException("Failing timeout task");
+			}
+		}
+
+		synchronized int getRuns() {
+			return runs;
+		}
+	}
+
+	public void setUp() {
+		Timer.reset();
+	}
+
+	public void testFailingCallback() throws Exception {
+		Timer timer = DnsController.getLoop(0).getTimer();
+		long now = System.currentTimeMillis();
+		CountingTask before = new CountingTask(false);
+		CountingTask failing = new CountingTask(true);
+		CountingTask after = new CountingTask(false);
+		CountingTask later = new CountingTask(false);
+		// Due in the same tick, so called back in the same pass
+		timer.addTimeout(now + 50, before);
+		timer.addTimeout(now + 50, failing);
+		timer.addTimeout(now + 50, after);
+		timer.addTimeout(now + 150, later);
+		Thread.sleep(500);
+		assertEquals(1, failing.getRuns());
+		assertEquals(1, before.getRuns());
+		assertEquals(1, after.getRuns());
+		assertEquals(1, later.getRuns());
+	}
+}
@@ -0,0 +1,180 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import org.xbill.DNS.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Check that UDP queries can share the sockets in a UDPSocketPool
+ */
+public class UDPSocketPoolTest extends ServerTestCase {
+	public void testPooledQueries() throws Exception {
+		int numRequests = 250;
+		NonblockingResolver resolver = new NonblockingResolver(SERVER);
+		resolver.setPort(PORT);
+		resolver.setTimeout(TIMEOUT);
+		resolver.setUdpSocketPool(true);
+		UDPSocketPool pool = UDPSocketPool.getPool(resolver.getLocalAddress().getAddress());
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = 0; i < numRequests; i++) {
+			Message query = getQuery("example" + i + ".net");
+			query.getHeader().setID(i);
+			resolver.sendAsync(query, new Integer(i), queue);
+		}
+		int bad = 0;
+		Set ports = new HashSet();
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			if (response.isException()) {
+				bad++;
+				continue;
+			}
+			int id = ((Integer)response.getId()).intValue();
+			Message message = response.getMessage();
+			assertEquals(id, message.getHeader().getID());
+			assertEquals(Name.fromString("example" + id + ".net", Name.root),
+					message.getQuestion().getName());
+			ports.add(TestServer.getPortFromResponse(message));
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + numRequests + ")",
+				bad < (numRequests * 0.05));
+		assertTrue("Too many ports used (" + ports.size() + ")",
+				ports.size() <= pool.getSocketsPerLoop() * DnsController.getNumLoops());
+	}
+
+	public void testUpstreamIds() throws Exception {
+		// Two resolvers for the same server share its IdAllocator, so their
+		// queries never collide on the pool's sockets
+		int numRequests = 100;
+		NonblockingResolver[] resolvers = new NonblockingResolver[2];
+		for (int i = 0; i < resolvers.length; i++) {
+			resolvers[i] = new NonblockingResolver(SERVER);
+			resolvers[i].setPort(PORT);
+			resolvers[i].setTimeout(TIMEOUT);
+			resolvers[i].setUdpSocketPool(true);
+		}
+		InetSocketAddress upstream = resolvers[0].getRemoteAddress();
+		ResponseQueue queue = new ResponseQueue();
+		for (int i = 0; i < numRequests; i++) {
+			Message query = getQuery("example" + i + ".net");
+			resolvers[i % 2].sendAsyncWithNewId(query, new Integer(i),
+					TIMEOUT * 1000, false, queue);
+		}
+		int bad = 0;
+		Set qids = new HashSet();
+		for (int i = 0; i < numRequests; i++) {
+			Response response = queue.getItem();
+			if (response.isException()) {
+				bad++;
+				continue;
+			}
+			qids.add(new Integer(response.getMessage().getHeader().getID()));
+		}
+		assertTrue("Too many exceptions! (" + bad + " of " + numRequests + ")",
+				bad < (numRequests * 0.05));
+		assertEquals("QIDs reused", numRequests - bad, qids.size());
+		assertNull("Idle IdAllocator kept", IdAllocator.getUpstream(upstream));
+	}
+
+	public void testUpstreamAllocatorChurn() throws Exception {
+		// The upstream's allocator is dropped and recreated as its in use
+		// count keeps falling to 0 - no ID may be handed out twice meanwhile
+		final InetSocketAddress upstream = new InetSocketAddress(InetAddress
+				.getByName("127.0.0.1"), 53535);
+		final AtomicIntegerArray held = new AtomicIntegerArray(IdAllocator.NUM_IDS);
+		final AtomicInteger collisions = new AtomicInteger(0);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 20000; j++) {
+						int id = IdAllocator.allocateUpstream(upstream);
+						if (!held.compareAndSet(id, 0, 1)) {
+							collisions.incrementAndGet();
+							continue;
+						}
+						held.set(id, 0);
+						IdAllocator.releaseUpstream(upstream, id);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		assertEquals("IDs handed out twice", 0, collisions.get());
+		assertNull("Idle IdAllocator kept", IdAllocator.getUpstream(upstream));
+	}
+
+	public void testMismatchedDatagram() throws Exception {
+		// A server which sends an answer to some other question, with the
+		// right header ID, before the real answer
+		final DatagramSocket socket = new DatagramSocket(0, InetAddress
+				.getByName("127.0.0.1"));
+		Thread responder = new Thread() {
+			public void run() {
+				try {
+					byte[] buf = new byte[512];
+					DatagramPacket packet = new DatagramPacket(buf, buf.length);
+					socket.receive(packet);
+					Message query = new Message(packet.getData());
+					Message spoofed = new Message(query.getHeader().getID());
+					spoofed.getHeader().setFlag(Flags.QR);
+					spoofed.addRecord(Record.newRecord(Name.fromString(
+							"spoofed.example.net", Name.root), Type.A,
+							DClass.ANY), Section.QUESTION);
+					send(spoofed, packet);
+					Message answer = new Message(query.getHeader().getID());
+					answer.getHeader().setFlag(Flags.QR);
+					answer.addRecord(query.getQuestion(), Section.QUESTION);
+					send(answer, packet);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+
+			private void send(Message m, DatagramPacket to) throws Exception {
+				byte[] wire = m.toWire();
+				socket.send(new DatagramPacket(wire, wire.length, to
+						.getSocketAddress()));
+			}
+		};
+		responder.start();
+		try {
+			NonblockingResolver resolver = new NonblockingResolver("127.0.0.1");
+			resolver.setPort(socket.getLocalPort());
+			resolver.setTimeout(2);
+			resolver.setUdpSocketPool(true);
+			Message response = resolver.send(getQuery("example.net"));
+			assertEquals(Name.fromString("example.net", Name.root), response
+					.getQuestion().getName());
+		} finally {
+			responder.join(1000);
+			socket.close();
+		}
+	}
+}
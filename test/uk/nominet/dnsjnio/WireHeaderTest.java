@@ -0,0 +1,80 @@
+/*
+Copyright 2007 Nominet UK
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License. 
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0 
+
+Unless required by applicable law or agreed to in writing, software 
+distributed under the License is distributed on an "AS IS" BASIS, 
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+See the License for the specific language governing permissions and 
+limitations under the License.
+ */
+
+package uk.nominet.dnsjnio;
+
+import junit.framework.TestCase;
+import org.xbill.DNS.*;
+
+/**
+ * Check that responses are matched to their queries from the wire format
+ */
+public class WireHeaderTest extends TestCase {
+
+	private Message makeQuery(String name, int type) throws Exception {
+		Message query = Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+		query.getHeader().setID(4321);
+		return query;
+	}
+
+	private Message makeResponse(Message query) {
+		Message response = new Message(query.getHeader().getID());
+		response.getHeader().setFlag(Flags.QR);
+		response.getHeader().setRcode(Rcode.NXDOMAIN);
+		if (query.getQuestion() != null) {
+			response.addRecord(query.getQuestion(), Section.QUESTION);
+		}
+		return response;
+	}
+
+	public void testHeaderFields() throws Exception {
+		byte[] wire = makeResponse(makeQuery("example.net.", Type.A)).toWire();
+		assertTrue(WireHeader.hasHeader(wire));
+		assertFalse(WireHeader.hasHeader(new byte[Header.LENGTH - 1]));
+		assertEquals(4321, WireHeader.getId(wire));
+		assertTrue(WireHeader.isResponse(wire));
+		assertFalse(WireHeader.getFlag(wire, Flags.TC));
+		assertEquals(Rcode.NXDOMAIN, WireHeader.getRcode(wire));
+		assertEquals(1, WireHeader.getQuestionCount(wire));
+	}
+
+	public void testMatchesQuery() throws Exception {
+		Message query = makeQuery("Example.NET.", Type.A);
+		byte[] queryWire = query.toWire();
+		assertTrue(WireHeader.matchesQuery(makeResponse(makeQuery("example.net.", Type.A)).toWire(), queryWire));
+		assertFalse(WireHeader.matchesQuery(makeResponse(makeQuery("example.org.", Type.A)).toWire(), queryWire));
+		assertFalse(WireHeader.matchesQuery(makeResponse(makeQuery("example.net.", Type.MX)).toWire(), queryWire));
+		assertFalse(WireHeader.matchesQuery(makeResponse(makeQuery("www.example.net.", Type.A)).toWire(), queryWire));
+		// Truncated packets are rejected rather than read past the end
+		byte[] response = makeResponse(query).toWire();
+		byte[] cut = new byte[response.length - 2];
+		System.arraycopy(response, 0, cut, 0, cut.length);
+		assertFalse(WireHeader.matchesQuery(cut, queryWire));
+	}
+
+	public void testUdpPayloadSize() throws Exception {
+		Message query = makeQuery("example.net.", Type.A);
+		assertEquals(0, WireHeader.getUdpPayloadSize(query.toWire()));
+		query.addRecord(new OPTRecord(1280, 0, 0), Section.ADDITIONAL);
+		assertEquals(1280, WireHeader.getUdpPayloadSize(query.toWire()));
+		// Skip over the records before the OPT record
+		Message response = makeResponse(query);
+		response.addRecord(Record.fromString(Name.fromString("example.net."), Type.A, DClass.IN,
+				3600, "10.0.0.1", Name.root), Section.ANSWER);
+		response.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+		assertEquals(4096, WireHeader.getUdpPayloadSize(response.toWire()));
+	}
+}